@@ -0,0 +1,69 @@
+package xyz.gianlu.librespot.api;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+import xyz.gianlu.librespot.api.server.AbsApiHandler;
+import xyz.gianlu.librespot.api.server.ApiServer;
+import xyz.gianlu.librespot.core.Session;
+import xyz.gianlu.librespot.mercury.MercuryClient;
+import xyz.gianlu.librespot.player.CachePrefetcher;
+import xyz.gianlu.librespot.player.Player;
+
+import java.io.IOException;
+
+/**
+ * @author Gianlu
+ */
+public class CacheHandler extends AbsApiHandler {
+    private final Player player;
+
+    public CacheHandler(@NotNull Session session) {
+        super("cache");
+        this.player = session.player();
+    }
+
+    @Override
+    protected @NotNull JsonElement handleRequest(ApiServer.@NotNull Request request) throws HandlingException, ApiServer.PredefinedJsonRpcException {
+        switch (request.getSuffix()) {
+            case "stats":
+                return player.cacheStats().toJson();
+            case "prefetch":
+                return prefetch(request);
+            default:
+                throw ApiServer.PredefinedJsonRpcException.from(request, ApiServer.PredefinedJsonRpcError.METHOD_NOT_FOUND);
+        }
+    }
+
+    /**
+     * Starts prefetching the track, album or playlist given by the {@code uri} parameter.
+     */
+    @NotNull
+    private JsonElement prefetch(@NotNull ApiServer.Request request) throws HandlingException, ApiServer.PredefinedJsonRpcException {
+        if (request.params == null || !request.params.isJsonObject())
+            throw ApiServer.PredefinedJsonRpcException.from(request, ApiServer.PredefinedJsonRpcError.INVALID_PARAMS);
+
+        JsonElement uri = request.params.getAsJsonObject().get("uri");
+        if (uri == null || !uri.isJsonPrimitive())
+            throw ApiServer.PredefinedJsonRpcException.from(request, ApiServer.PredefinedJsonRpcError.INVALID_PARAMS);
+
+        CachePrefetcher.Job job;
+        try {
+            job = player.prefetcher().prefetch(uri.getAsString(), null);
+        } catch (IllegalArgumentException ex) {
+            throw ApiServer.PredefinedJsonRpcException.from(request, ApiServer.PredefinedJsonRpcError.INVALID_PARAMS);
+        } catch (IOException ex) {
+            throw new HandlingException(ex, ErrorCode.IO_EXCEPTION);
+        } catch (MercuryClient.MercuryException ex) {
+            throw new HandlingException(ex, ErrorCode.MERCURY_EXCEPTION);
+        }
+
+        JsonObject obj = new JsonObject();
+        obj.addProperty("tracks", job.totalTracks);
+        return obj;
+    }
+
+    @Override
+    protected void handleNotification(ApiServer.@NotNull Request request) {
+    }
+}
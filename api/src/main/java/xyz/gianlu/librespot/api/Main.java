@@ -1,5 +1,7 @@
 package xyz.gianlu.librespot.api;
 
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
 import xyz.gianlu.librespot.FileConfiguration;
 import xyz.gianlu.librespot.api.server.ApiServer;
 import xyz.gianlu.librespot.core.Session;
@@ -14,13 +16,24 @@ import java.security.GeneralSecurityException;
  * @author Gianlu
  */
 public class Main {
+    private static final Logger LOGGER = Logger.getLogger(Main.class);
 
     public static void main(String[] args) throws IOException, GeneralSecurityException, MercuryClient.PubSubException, SpotifyIrc.IrcException, Session.SpotifyAuthenticationException {
         Session session = new Session.Builder(new FileConfiguration(new File("conf.properties"), args)).create();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> close(session), "shutdown"));
 
         ApiServer server = new ApiServer(24879);
         server.registerHandler(new PlayerHandler(session));
         server.registerHandler(new MetadataHandler(session));
         server.registerHandler(new MercuryHandler(session));
+        server.registerHandler(new CacheHandler(session));
+    }
+
+    private static void close(@NotNull Session session) {
+        try {
+            session.close();
+        } catch (Exception ex) {
+            LOGGER.warn("Failed closing session!", ex);
+        }
     }
 }
@@ -3,15 +3,16 @@ package xyz.gianlu.librespot.api;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.protobuf.ByteString;
 import org.jetbrains.annotations.NotNull;
 import xyz.gianlu.librespot.api.server.AbsApiHandler;
 import xyz.gianlu.librespot.api.server.ApiServer;
+import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.mercury.MercuryClient;
 import xyz.gianlu.librespot.mercury.RawMercuryRequest;
 
 import java.io.IOException;
-import java.util.Base64;
 
 /**
  * @author Gianlu
@@ -45,8 +46,8 @@ public class MercuryHandler extends AbsApiHandler {
                 MercuryClient.Response response = client.sendSync(builder.build());
 
                 JsonArray payloads = new JsonArray(response.payload.size());
-                for (byte[] bytes : response.payload)
-                    payloads.add(Base64.getEncoder().encodeToString(bytes));
+                for (ByteString bytes : response.payload)
+                    payloads.add(Utils.toBase64(bytes));
 
                 JsonObject obj = new JsonObject();
                 obj.addProperty("code", response.statusCode);
@@ -56,6 +57,8 @@ public class MercuryHandler extends AbsApiHandler {
             } catch (IOException ex) {
                 throw new HandlingException(ex, ErrorCode.IO_EXCEPTION);
             }
+        } else if (request.getSuffix().equals("stats")) {
+            return client.stats().toJson();
         } else {
             throw ApiServer.PredefinedJsonRpcException.from(request, ApiServer.PredefinedJsonRpcError.METHOD_NOT_FOUND);
         }
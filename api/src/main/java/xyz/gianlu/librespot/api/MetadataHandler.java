@@ -8,12 +8,15 @@ import org.jetbrains.annotations.Nullable;
 import xyz.gianlu.librespot.api.server.AbsApiHandler;
 import xyz.gianlu.librespot.api.server.ApiServer;
 import xyz.gianlu.librespot.core.Session;
+import xyz.gianlu.librespot.mercury.JsonProjection;
 import xyz.gianlu.librespot.mercury.MercuryClient;
 import xyz.gianlu.librespot.mercury.MercuryRequests;
 import xyz.gianlu.librespot.mercury.ProtoJsonMercuryRequest;
 import xyz.gianlu.librespot.mercury.model.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author Gianlu
@@ -40,7 +43,7 @@ public class MetadataHandler extends AbsApiHandler {
             } else if (obj.has("uri")) {
                 return SpotifyId.fromUri(clazz, obj.get("uri").getAsString());
             } else if (obj.has("base62")) {
-                return SpotifyId.fromBase62(clazz, obj.get("gid").getAsString());
+                return SpotifyId.fromBase62(clazz, obj.get("base62").getAsString());
             } else {
                 throw ApiServer.PredefinedJsonRpcException.from(request, ApiServer.PredefinedJsonRpcError.INVALID_REQUEST);
             }
@@ -49,28 +52,62 @@ public class MetadataHandler extends AbsApiHandler {
         }
     }
 
+    /**
+     * @return The fields listed in the {@code fields} parameter, or {@code null} for all of them if it's missing.
+     * An empty list of fields is rejected.
+     */
+    @Nullable
+    private static JsonProjection extractProjection(@NotNull ApiServer.Request request, @Nullable JsonElement params) throws ApiServer.PredefinedJsonRpcException {
+        if (params == null || !params.isJsonObject()) return null;
+
+        JsonElement fields = params.getAsJsonObject().get("fields");
+        if (fields == null) return null;
+        if (!fields.isJsonArray())
+            throw ApiServer.PredefinedJsonRpcException.from(request, ApiServer.PredefinedJsonRpcError.INVALID_PARAMS);
+
+        List<String> paths = new ArrayList<>(fields.getAsJsonArray().size());
+        for (JsonElement field : fields.getAsJsonArray()) {
+            if (!field.isJsonPrimitive() || !field.getAsJsonPrimitive().isString())
+                throw ApiServer.PredefinedJsonRpcException.from(request, ApiServer.PredefinedJsonRpcError.INVALID_PARAMS);
+
+            paths.add(field.getAsString());
+        }
+
+        JsonProjection projection = JsonProjection.parse(paths);
+        if (projection == null)
+            throw ApiServer.PredefinedJsonRpcException.from(request, ApiServer.PredefinedJsonRpcError.INVALID_PARAMS);
+
+        return projection;
+    }
+
     @Override
-    protected @NotNull JsonElement handleRequest(ApiServer.@NotNull Request request) throws ApiServer.PredefinedJsonRpcException, HandlingException {
+    protected @Nullable ApiServer.StreamedResult handleStreamedRequest(ApiServer.@NotNull Request request) throws ApiServer.PredefinedJsonRpcException, HandlingException {
         switch (request.getSuffix()) {
             case "rootlists":
-                return handle(MercuryRequests.getRootPlaylists(session.apWelcome().getCanonicalUsername()));
+                return handle(MercuryRequests.getRootPlaylists(session.apWelcome().getCanonicalUsername()), extractProjection(request, request.params));
             case "playlist":
-                return handle(MercuryRequests.getPlaylist(extractId(PlaylistId.class, request, request.params)));
+                return handle(MercuryRequests.getPlaylist(extractId(PlaylistId.class, request, request.params)), extractProjection(request, request.params));
             case "track":
-                return handle(MercuryRequests.getTrack(extractId(TrackId.class, request, request.params)));
+                return handle(MercuryRequests.getTrack(extractId(TrackId.class, request, request.params)), extractProjection(request, request.params));
             case "artist":
-                return handle(MercuryRequests.getArtist(extractId(ArtistId.class, request, request.params)));
+                return handle(MercuryRequests.getArtist(extractId(ArtistId.class, request, request.params)), extractProjection(request, request.params));
             case "album":
-                return handle(MercuryRequests.getAlbum(extractId(AlbumId.class, request, request.params)));
+                return handle(MercuryRequests.getAlbum(extractId(AlbumId.class, request, request.params)), extractProjection(request, request.params));
             default:
-                throw ApiServer.PredefinedJsonRpcException.from(request, ApiServer.PredefinedJsonRpcError.METHOD_NOT_FOUND);
+                return null;
         }
     }
 
+    @Override
+    protected @NotNull JsonElement handleRequest(ApiServer.@NotNull Request request) throws ApiServer.PredefinedJsonRpcException {
+        throw ApiServer.PredefinedJsonRpcException.from(request, ApiServer.PredefinedJsonRpcError.METHOD_NOT_FOUND);
+    }
+
     @NotNull
-    private <P extends AbstractMessageLite> JsonElement handle(@NotNull ProtoJsonMercuryRequest<P> req) throws HandlingException {
+    private <P extends AbstractMessageLite> ApiServer.StreamedResult handle(@NotNull ProtoJsonMercuryRequest<P> req, @Nullable JsonProjection projection) throws HandlingException {
         try {
-            return client.sendSync(req).json();
+            MercuryClient.ProtoWrapperResponse<P> resp = client.sendSync(req);
+            return out -> resp.writeJson(out, projection);
         } catch (MercuryClient.MercuryException ex) {
             throw new HandlingException(ex, ErrorCode.MERCURY_EXCEPTION);
         } catch (IOException ex) {
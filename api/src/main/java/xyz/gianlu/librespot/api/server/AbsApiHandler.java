@@ -32,8 +32,9 @@ public abstract class AbsApiHandler {
         }
 
         try {
-            JsonElement result = handleRequest(request);
-            request.answerResult(result);
+            ApiServer.StreamedResult streamed = handleStreamedRequest(request);
+            if (streamed != null) request.answerResult(streamed);
+            else request.answerResult(handleRequest(request));
         } catch (HandlingException ex) {
             request.answerError(ex.code.code, ex.msg, ex.data);
         } catch (ApiServer.PredefinedJsonRpcException ex) {
@@ -41,6 +42,16 @@ public abstract class AbsApiHandler {
         }
     }
 
+    /**
+     * Handles the requests whose result is written directly to the response.
+     *
+     * @return The result, or {@code null} to handle the request with {@link #handleRequest(ApiServer.Request)}
+     */
+    @Nullable
+    protected ApiServer.StreamedResult handleStreamedRequest(@NotNull ApiServer.Request request) throws HandlingException, ApiServer.PredefinedJsonRpcException {
+        return null;
+    }
+
     @NotNull
     protected abstract JsonElement handleRequest(@NotNull ApiServer.Request request) throws HandlingException, ApiServer.PredefinedJsonRpcException;
 
@@ -1,14 +1,19 @@
 package xyz.gianlu.librespot.api.server;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonWriter;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -18,6 +23,7 @@ import java.util.Objects;
  */
 public class ApiServer implements Receiver {
     private static final JsonParser PARSER = new JsonParser();
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().serializeNulls().create();
     private static final Logger LOGGER = Logger.getLogger(ApiServer.class);
     private final WebsocketServer server;
     private final Map<String, AbsApiHandler> handlers = new HashMap<>();
@@ -114,6 +120,13 @@ public class ApiServer implements Receiver {
         }
     }
 
+    /**
+     * A result written directly to the response, without building a JSON tree.
+     */
+    public interface StreamedResult {
+        void write(@NotNull JsonWriter out) throws IOException;
+    }
+
     public static class Request {
         public final String method;
         public final JsonElement params;
@@ -132,15 +145,33 @@ public class ApiServer implements Receiver {
             return method.substring(method.indexOf('.') + 1);
         }
 
-        private void answer(boolean error, @NotNull JsonElement obj) {
+        /**
+         * Sends the response. If the result fails to be written, the partial response is discarded
+         * and an {@link PredefinedJsonRpcError#INTERNAL_ERROR} is sent instead.
+         */
+        private void answer(boolean error, @NotNull StreamedResult result) {
             if (id == null) throw new IllegalStateException("Cannot send response to a notification!");
 
-            JsonObject resp = new JsonObject();
-            resp.addProperty("jsonrpc", "2.0");
-            resp.add("id", id);
-            if (error) resp.add("error", obj);
-            else resp.add("result", obj);
-            sender.sendText(resp.toString());
+            StringWriter writer = new StringWriter();
+            try (JsonWriter out = new JsonWriter(writer)) {
+                out.beginObject();
+                out.name("jsonrpc").value("2.0");
+                out.name("id");
+                GSON.toJson(id, out);
+                out.name(error ? "error" : "result");
+                result.write(out);
+                out.endObject();
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.error("Failed writing response for " + method, ex);
+                if (!error) {
+                    PredefinedJsonRpcError internal = PredefinedJsonRpcError.INTERNAL_ERROR;
+                    answerError(internal.code, internal.msg, ex.getMessage() == null ? null : new JsonPrimitive(ex.getMessage()));
+                }
+
+                return;
+            }
+
+            sender.sendText(writer.toString());
         }
 
         void answerError(int code, @NotNull String msg, @Nullable JsonElement data) {
@@ -148,7 +179,7 @@ public class ApiServer implements Receiver {
             error.addProperty("code", code);
             error.addProperty("message", msg);
             if (data != null) error.add("data", data);
-            answer(true, error);
+            answer(true, out -> GSON.toJson(error, out));
         }
 
         void answerError(@NotNull PredefinedJsonRpcException ex) {
@@ -156,6 +187,10 @@ public class ApiServer implements Receiver {
         }
 
         void answerResult(@NotNull JsonElement result) {
+            answer(false, out -> GSON.toJson(result, out));
+        }
+
+        void answerResult(@NotNull StreamedResult result) {
             answer(false, result);
         }
 
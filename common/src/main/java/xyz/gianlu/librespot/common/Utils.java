@@ -19,7 +19,6 @@ import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Gianlu
@@ -65,18 +64,6 @@ public class Utils {
         return buffer.toString();
     }
 
-    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
-    public static <A> A wait(@NotNull AtomicReference<A> ref) throws IOException {
-        synchronized (ref) {
-            try {
-                ref.wait();
-                return ref.get();
-            } catch (InterruptedException ex) {
-                throw new IOException(ex);
-            }
-        }
-    }
-
     public static void removeCryptographyRestrictions() {
         if (!isRestrictedCryptography()) {
             LOGGER.info("Cryptography restrictions removal not needed.");
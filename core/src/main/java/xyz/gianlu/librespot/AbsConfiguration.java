@@ -4,13 +4,17 @@ import org.jetbrains.annotations.Nullable;
 import xyz.gianlu.librespot.core.AuthConfiguration;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.core.ZeroconfAuthenticator;
+import xyz.gianlu.librespot.mercury.MercuryClient;
+import xyz.gianlu.librespot.mercury.MetadataCache;
+import xyz.gianlu.librespot.mercury.MultiGetBatcher;
 import xyz.gianlu.librespot.player.CacheManager;
+import xyz.gianlu.librespot.player.CachePrefetcher;
 import xyz.gianlu.librespot.player.Player;
 
 /**
  * @author Gianlu
  */
-public abstract class AbsConfiguration implements Player.PlayerConfiguration, CacheManager.CacheConfiguration, AuthConfiguration, ZeroconfAuthenticator.Configuration {
+public abstract class AbsConfiguration implements Player.PlayerConfiguration, CacheManager.CacheConfiguration, CachePrefetcher.Configuration, MercuryClient.Configuration, MetadataCache.Configuration, MultiGetBatcher.Configuration, AuthConfiguration, ZeroconfAuthenticator.Configuration {
 
     @Nullable
     public abstract String deviceName();
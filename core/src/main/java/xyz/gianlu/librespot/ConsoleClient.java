@@ -1,5 +1,6 @@
 package xyz.gianlu.librespot;
 
+import com.google.protobuf.ByteString;
 import org.jetbrains.annotations.NotNull;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.mercury.MercuryClient;
@@ -7,6 +8,7 @@ import xyz.gianlu.librespot.mercury.RawMercuryRequest;
 import xyz.gianlu.librespot.common.Utils;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Scanner;
 
 /**
@@ -57,7 +59,13 @@ public class ConsoleClient {
 
         for (int i = 0; i < resp.payload.size(); i++) {
             System.out.println("Payload " + i + " HEX: " + Utils.bytesToHex(resp.payload.get(i)));
-            System.out.println("Payload " + i + " string: " + new String(resp.payload.get(i)));
+            System.out.println("Payload " + i + " string: " + resp.payload.get(i).toStringUtf8());
+        }
+
+        if (resp.isCompressed()) {
+            try (InputStream body = resp.stream()) {
+                System.out.println("Inflated payload: " + ByteString.readFrom(body).toStringUtf8());
+            }
         }
 
         System.out.println();
@@ -3,9 +3,11 @@ package xyz.gianlu.librespot;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import xyz.gianlu.librespot.core.Session;
+import xyz.gianlu.librespot.player.CacheManager;
 import xyz.gianlu.librespot.player.StreamFeeder;
 
 import java.io.File;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Gianlu
@@ -32,6 +34,11 @@ public final class DefaultConfiguration extends AbsConfiguration {
         return true;
     }
 
+    @Override
+    public int keyPrefetchCount() {
+        return 3;
+    }
+
     //****************//
     //---- CACHE -----//
     //****************//
@@ -51,6 +58,76 @@ public final class DefaultConfiguration extends AbsConfiguration {
         return true;
     }
 
+    @Override
+    public @NotNull CacheManager.SyncPolicy cacheSyncPolicy() {
+        return CacheManager.SyncPolicy.PERIODIC;
+    }
+
+    @Override
+    public int cacheQuotaMb() {
+        return 0;
+    }
+
+    @Override
+    public int cacheScrubBandwidthKbps() {
+        return 0;
+    }
+
+    @Override
+    public int cacheMemoryMb() {
+        return 32;
+    }
+
+    @Override
+    public boolean cacheSegmentedStore() {
+        return false;
+    }
+
+    @Override
+    public boolean cacheShared() {
+        return false;
+    }
+
+    @Override
+    public int prefetchConcurrency() {
+        return 2;
+    }
+
+    @Override
+    public int prefetchBandwidthKbps() {
+        return 0;
+    }
+
+    @Override
+    public boolean mercuryCompression() {
+        return true;
+    }
+
+    @Override
+    public boolean metadataCacheEnabled() {
+        return true;
+    }
+
+    @Override
+    public int metadataCacheMemoryEntries() {
+        return 512;
+    }
+
+    @Override
+    public int metadataCacheDefaultTtl() {
+        return (int) TimeUnit.DAYS.toSeconds(1);
+    }
+
+    @Override
+    public int metadataBatchWindow() {
+        return 5;
+    }
+
+    @Override
+    public int metadataBatchSize() {
+        return 100;
+    }
+
     @NotNull
     @Override
     public String deviceName() {
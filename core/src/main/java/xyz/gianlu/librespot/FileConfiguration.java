@@ -6,6 +6,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.core.Session;
+import xyz.gianlu.librespot.player.CacheManager;
 import xyz.gianlu.librespot.player.StreamFeeder;
 
 import java.io.File;
@@ -61,6 +62,14 @@ public final class FileConfiguration extends AbsConfiguration {
         }
     }
 
+    private int getInt(@NotNull String key, int fallback) {
+        try {
+            return Integer.parseInt(properties.getProperty(key, String.valueOf(fallback)));
+        } catch (NumberFormatException ex) {
+            return fallback;
+        }
+    }
+
     @Contract("_, _, !null -> !null")
     private <E extends Enum<E>> E getEnum(@NotNull Class<E> clazz, @NotNull String key, @Nullable E fallback) {
         String val = properties.getProperty(key, null);
@@ -96,6 +105,76 @@ public final class FileConfiguration extends AbsConfiguration {
         return getBoolean("cache.doCleanUp", defaults.doCleanUp());
     }
 
+    @Override
+    public @NotNull CacheManager.SyncPolicy cacheSyncPolicy() {
+        return getEnum(CacheManager.SyncPolicy.class, "cache.syncPolicy", defaults.cacheSyncPolicy());
+    }
+
+    @Override
+    public int cacheQuotaMb() {
+        return getInt("cache.quotaMb", defaults.cacheQuotaMb());
+    }
+
+    @Override
+    public int cacheScrubBandwidthKbps() {
+        return getInt("cache.scrubBandwidthKbps", defaults.cacheScrubBandwidthKbps());
+    }
+
+    @Override
+    public int cacheMemoryMb() {
+        return getInt("cache.memoryMb", defaults.cacheMemoryMb());
+    }
+
+    @Override
+    public boolean cacheSegmentedStore() {
+        return getBoolean("cache.segmentedStore", defaults.cacheSegmentedStore());
+    }
+
+    @Override
+    public boolean cacheShared() {
+        return getBoolean("cache.shared", defaults.cacheShared());
+    }
+
+    @Override
+    public int prefetchConcurrency() {
+        return getInt("prefetch.concurrency", defaults.prefetchConcurrency());
+    }
+
+    @Override
+    public int prefetchBandwidthKbps() {
+        return getInt("prefetch.bandwidthKbps", defaults.prefetchBandwidthKbps());
+    }
+
+    @Override
+    public boolean mercuryCompression() {
+        return getBoolean("mercury.compression", defaults.mercuryCompression());
+    }
+
+    @Override
+    public boolean metadataCacheEnabled() {
+        return getBoolean("metadata.cacheEnabled", defaults.metadataCacheEnabled());
+    }
+
+    @Override
+    public int metadataCacheMemoryEntries() {
+        return getInt("metadata.memoryEntries", defaults.metadataCacheMemoryEntries());
+    }
+
+    @Override
+    public int metadataCacheDefaultTtl() {
+        return getInt("metadata.defaultTtl", defaults.metadataCacheDefaultTtl());
+    }
+
+    @Override
+    public int metadataBatchWindow() {
+        return getInt("metadata.batchWindowMs", defaults.metadataBatchWindow());
+    }
+
+    @Override
+    public int metadataBatchSize() {
+        return getInt("metadata.batchSize", defaults.metadataBatchSize());
+    }
+
     @Override
     public @NotNull StreamFeeder.AudioQuality preferredQuality() {
         return StreamFeeder.AudioQuality.valueOf(properties.getProperty("player.preferredAudioQuality", defaults.preferredQuality().name()));
@@ -106,6 +185,11 @@ public final class FileConfiguration extends AbsConfiguration {
         return getBoolean("preload.enabled", defaults.preloadEnabled());
     }
 
+    @Override
+    public int keyPrefetchCount() {
+        return getInt("player.keyPrefetchCount", defaults.keyPrefetchCount());
+    }
+
     @Override
     public float normalisationPregain() {
         return getFloat("player.normalisationPregain", defaults.normalisationPregain());
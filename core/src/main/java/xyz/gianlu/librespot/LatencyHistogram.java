@@ -0,0 +1,101 @@
+package xyz.gianlu.librespot;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram with power of two buckets, in microseconds. Bucket {@code i} counts the samples
+ * lower than {@code 2^i} microseconds. Percentiles are reported as the upper bound of their bucket.
+ * <p>
+ * Values that aren't durations, such as sizes, can be recorded with {@link #recordValue(long)}.
+ *
+ * @author Gianlu
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 32;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    private static long upperBound(int bucket) {
+        return 1L << bucket;
+    }
+
+    public void record(long nanos) {
+        recordValue(TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos)));
+    }
+
+    public void recordValue(long value) {
+        value = Math.max(0, value);
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, as returned by {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return The upper bound of the bucket containing the given percentile, in microseconds for durations
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            total += snapshot[i] = buckets.get(i);
+
+        if (total == 0) return 0;
+
+        long target = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) return upperBound(i);
+        }
+
+        return upperBound(BUCKETS - 1);
+    }
+
+    @NotNull
+    public JsonObject toJson() {
+        return toJson("Us");
+    }
+
+    /**
+     * @param unit The suffix of the properties, such as {@code Us} or {@code Bytes}
+     */
+    @NotNull
+    public JsonObject toJson(@NotNull String unit) {
+        JsonObject obj = new JsonObject();
+        long count = this.count.sum();
+        obj.addProperty("count", count);
+        obj.addProperty("mean" + unit, count == 0 ? 0 : sum.sum() / count);
+        obj.addProperty("max" + unit, max.get());
+        obj.addProperty("p50" + unit, percentile(50));
+        obj.addProperty("p90" + unit, percentile(90));
+        obj.addProperty("p99" + unit, percentile(99));
+
+        JsonArray array = new JsonArray();
+        int last = BUCKETS - 1;
+        while (last > 0 && buckets.get(last) == 0) last--;
+        for (int i = 0; i <= last; i++) array.add(buckets.get(i));
+        obj.add("buckets", array);
+        return obj;
+    }
+}
@@ -1,5 +1,7 @@
 package xyz.gianlu.librespot;
 
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.mercury.MercuryClient;
 import xyz.gianlu.librespot.spirc.SpotifyIrc;
@@ -12,8 +14,18 @@ import java.security.GeneralSecurityException;
  * @author Gianlu
  */
 public class Main {
+    private static final Logger LOGGER = Logger.getLogger(Main.class);
 
     public static void main(String[] args) throws IOException, GeneralSecurityException, Session.SpotifyAuthenticationException, SpotifyIrc.IrcException, MercuryClient.PubSubException {
-        new Session.Builder(new FileConfiguration(new File("../../conf.properties"), args)).create();
+        Session session = new Session.Builder(new FileConfiguration(new File("../../conf.properties"), args)).create();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> close(session), "shutdown"));
+    }
+
+    private static void close(@NotNull Session session) {
+        try {
+            session.close();
+        } catch (Exception ex) {
+            LOGGER.warn("Failed closing session!", ex);
+        }
     }
 }
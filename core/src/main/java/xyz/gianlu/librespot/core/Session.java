@@ -212,14 +212,14 @@ public class Session implements AutoCloseable {
         Packet packet = cipherPair.receiveEncoded(in);
         if (packet.is(Packet.Type.APWelcome)) {
             apWelcome = Authentication.APWelcome.parseFrom(packet.payload);
-            mercuryClient = new MercuryClient(this);
+            mercuryClient = new MercuryClient(this, inner.configuration, inner.configuration, inner.configuration, inner.configuration);
             receiver = new Receiver();
             new Thread(receiver).start();
 
-            audioKeyManager = new AudioKeyManager(this);
+            audioKeyManager = new AudioKeyManager(this, inner.configuration);
             channelManager = new ChannelManager(this);
             spirc = new SpotifyIrc(this);
-            player = new Player(inner.configuration, inner.configuration, this);
+            player = new Player(inner.configuration, inner.configuration, inner.configuration, this);
 
             LOGGER.info(String.format("Authenticated as %s!", apWelcome.getCanonicalUsername()));
 
@@ -235,6 +235,8 @@ public class Session implements AutoCloseable {
 
     @Override
     public void close() throws Exception {
+        if (player != null) player.close();
+
         receiver.stop();
         receiver = null;
 
@@ -4,8 +4,11 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * @author Gianlu
@@ -21,9 +24,9 @@ public class JsonMercuryRequest<W extends JsonWrapper> {
     }
 
     @NotNull
-    public W instantiate(@NotNull MercuryClient.Response resp) {
-        try {
-            JsonElement elm = PARSER.parse(new InputStreamReader(resp.payload.stream()));
+    public W instantiate(@NotNull MercuryClient.Response resp) throws IOException {
+        try (Reader reader = new InputStreamReader(resp.stream(), StandardCharsets.UTF_8)) {
+            JsonElement elm = PARSER.parse(reader);
             return wrapperClass.getConstructor(JsonElement.class).newInstance(elm);
         } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException ex) {
             throw new RuntimeException(ex);
@@ -0,0 +1,56 @@
+package xyz.gianlu.librespot.mercury;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The fields that should be written by a {@link ProtoJsonMercuryRequest.JsonConverter}. Nested fields are separated
+ * by dots, {@code album.name} writes only the name of the album. Fields of arrays apply to each element.
+ * A {@code null} projection writes every field.
+ *
+ * @author Gianlu
+ */
+public final class JsonProjection {
+    private final Map<String, JsonProjection> fields = new HashMap<>();
+    private boolean all = false;
+
+    private JsonProjection() {
+    }
+
+    /**
+     * @return The projection, or {@code null} if there are no fields
+     */
+    @Nullable
+    public static JsonProjection parse(@NotNull Iterable<String> paths) {
+        JsonProjection root = new JsonProjection();
+        for (String path : paths) {
+            JsonProjection node = root;
+            for (String field : path.split("\\.")) {
+                if (field.isEmpty()) continue;
+                node = node.fields.computeIfAbsent(field, k -> new JsonProjection());
+            }
+
+            if (node != root) node.all = true;
+        }
+
+        return root.fields.isEmpty() ? null : root;
+    }
+
+    static boolean includes(@Nullable JsonProjection projection, @NotNull String field) {
+        return projection == null || projection.fields.containsKey(field);
+    }
+
+    /**
+     * @return The projection of the nested field, or {@code null} if it should be written entirely
+     */
+    @Nullable
+    static JsonProjection child(@Nullable JsonProjection projection, @NotNull String field) {
+        if (projection == null) return null;
+
+        JsonProjection child = projection.fields.get(field);
+        return child == null || child.all ? null : child;
+    }
+}
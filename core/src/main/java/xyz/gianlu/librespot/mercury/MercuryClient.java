@@ -1,39 +1,70 @@
 package xyz.gianlu.librespot.mercury;
 
 import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import com.google.protobuf.AbstractMessageLite;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
+import com.google.protobuf.UnsafeByteOperations;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
-import xyz.gianlu.librespot.BytesArrayList;
-import xyz.gianlu.librespot.common.Utils;
+import org.jetbrains.annotations.Nullable;
 import xyz.gianlu.librespot.common.proto.Mercury;
 import xyz.gianlu.librespot.common.proto.Pubsub;
 import xyz.gianlu.librespot.core.PacketsManager;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.crypto.Packet;
+import xyz.gianlu.librespot.player.CacheManager;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.zip.GZIPInputStream;
 
 /**
  * @author Gianlu
  */
 public class MercuryClient extends PacketsManager {
     private static final Logger LOGGER = Logger.getLogger(MercuryClient.class);
+    private static final long REQUEST_TIMEOUT = TimeUnit.SECONDS.toMillis(15);
+    private static final String[] COMPRESSIBLE_PREFIXES = new String[]{"hm://playlist/", "hm://context-resolve/"};
     private final AtomicInteger seqHolder = new AtomicInteger(1);
     private final Map<Long, Callback> callbacks = new ConcurrentHashMap<>();
-    private final List<InternalSubListener> subscriptions = Collections.synchronizedList(new ArrayList<>());
-    private final Map<Long, BytesArrayList> partials = new HashMap<>();
-
-    public MercuryClient(@NotNull Session session) {
+    private final Map<Long, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+    private final Map<FlightKey, Flight<?>> inFlight = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final SubscriptionTrie subscriptions = new SubscriptionTrie();
+    private final Map<String, List<String>> subscribedUris = new ConcurrentHashMap<>();
+    private final Map<Long, Partial> partials = new ConcurrentHashMap<>();
+    private final Map<Packet, Partial> completed = new ConcurrentHashMap<>();
+    private final Map<Long, MercuryStats.Trace> traces = new ConcurrentHashMap<>();
+    private final MercuryStats stats = new MercuryStats();
+    private final MetadataCache metadataCache;
+    private final MultiGetBatcher batcher;
+    private final boolean compression;
+
+    public MercuryClient(@NotNull Session session, @NotNull Configuration mercuryConf, @NotNull MetadataCache.Configuration conf,
+                         @NotNull MultiGetBatcher.Configuration batchConf, @NotNull CacheManager.CacheConfiguration cacheConf) {
         super(session);
+        this.compression = mercuryConf.mercuryCompression();
+        this.metadataCache = conf.metadataCacheEnabled() ? new MetadataCache(conf, cacheConf) : null;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mercury-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.batcher = batchConf.metadataBatchSize() > 1 ? new MultiGetBatcher(this, scheduler, batchConf) : null;
     }
 
     @NotNull
@@ -45,60 +76,362 @@ public class MercuryClient extends PacketsManager {
         Response response = sendSync(RawMercuryRequest.sub(uri));
         if (response.statusCode != 200) throw new PubSubException(response);
 
+        List<String> prefixes = new ArrayList<>(Math.max(1, response.payload.size()));
         if (response.payload.size() > 0) {
-            for (byte[] payload : response.payload) {
+            for (ByteString payload : response.payload) {
                 Pubsub.Subscription sub = Pubsub.Subscription.parseFrom(payload);
-                subscriptions.add(new InternalSubListener(sub.getUri(), listener));
+                prefixes.add(sub.getUri());
             }
         } else {
-            subscriptions.add(new InternalSubListener(uri, listener));
+            prefixes.add(uri);
         }
 
+        for (String prefix : prefixes) subscriptions.add(prefix, listener);
+        subscribedUris.merge(uri, prefixes, (old, added) -> {
+            List<String> merged = new ArrayList<>(old);
+            for (String prefix : added)
+                if (!merged.contains(prefix)) merged.add(prefix);
+
+            return merged;
+        });
+
         LOGGER.trace(String.format("Subscribed successfully to %s!", uri));
     }
 
+    /**
+     * Removes the listener, the server is notified once no other listener is subscribed to {@code uri}.
+     */
+    public void unsubscribe(@NotNull String uri, @NotNull SubListener listener) throws IOException, PubSubException {
+        List<String> prefixes = subscribedUris.get(uri);
+        if (prefixes == null) return;
+
+        boolean others = false;
+        for (String prefix : prefixes) others |= subscriptions.remove(prefix, listener);
+        if (others) return;
+
+        subscribedUris.remove(uri, prefixes);
+
+        Response response = sendSync(RawMercuryRequest.unsub(uri));
+        if (response.statusCode != 200) throw new PubSubException(response);
+
+        LOGGER.trace(String.format("Unsubscribed successfully from %s!", uri));
+    }
+
     @NotNull
-    public Response sendSync(@NotNull RawMercuryRequest request) throws IOException {
-        AtomicReference<Response> reference = new AtomicReference<>(null);
-        send(request, response -> {
-            synchronized (reference) {
-                reference.set(response);
-                reference.notifyAll();
-            }
+    private static <T> T get(@NotNull CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            else if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            else throw new IOException(ex.getCause());
+        }
+    }
+
+    @NotNull
+    private static <T> T getChecked(@NotNull CompletableFuture<T> future) throws IOException, MercuryException {
+        try {
+            return get(future);
+        } catch (IOException ex) {
+            if (ex.getCause() instanceof MercuryException) throw (MercuryException) ex.getCause();
+            else throw ex;
+        }
+    }
+
+    /**
+     * Like {@link CompletableFuture#thenApply(Function)}, but cancelling the result cancels {@code source} too.
+     */
+    @NotNull
+    private static <T, R> CompletableFuture<R> map(@NotNull CompletableFuture<T> source, @NotNull Function<T, R> fn) {
+        CompletableFuture<R> result = source.thenApply(fn);
+        result.whenComplete((r, ex) -> {
+            if (result.isCancelled()) source.cancel(false);
         });
+        return result;
+    }
+
+    @NotNull
+    private static Response checkStatus(@NotNull Response resp) {
+        if (resp.statusCode >= 200 && resp.statusCode < 300) return resp;
+        else throw new CompletionException(new MercuryException(resp));
+    }
 
-        return Utils.wait(reference);
+    @NotNull
+    public Response sendSync(@NotNull RawMercuryRequest request) throws IOException {
+        return get(sendAsync(request));
     }
 
     @NotNull
     public <W extends JsonWrapper> W sendSync(@NotNull JsonMercuryRequest<W> request) throws IOException, MercuryException {
-        Response resp = sendSync(request.request);
-        if (resp.statusCode >= 200 && resp.statusCode < 300) return request.instantiate(resp);
-        else throw new MercuryException(resp);
+        return getChecked(sendAsync(request));
     }
 
     @NotNull
     public <P extends AbstractMessageLite> P sendSync(@NotNull ProtobufMercuryRequest<P> request) throws IOException, MercuryException {
-        Response resp = sendSync(request.request);
-        if (resp.statusCode >= 200 && resp.statusCode < 300) return request.parser.parseFrom(resp.payload.stream());
-        else throw new MercuryException(resp);
+        return getChecked(sendAsync(request));
     }
 
     @NotNull
     public <P extends AbstractMessageLite> ProtoWrapperResponse<P> sendSync(@NotNull ProtoJsonMercuryRequest<P> request) throws IOException, MercuryException {
-        return new ProtoWrapperResponse<>(sendSync((ProtobufMercuryRequest<P>) request), request.converter);
+        return getChecked(sendAsync(request));
+    }
+
+    /**
+     * Sends the request with the default deadline, see {@link #sendAsync(RawMercuryRequest, long)}.
+     */
+    @NotNull
+    public CompletableFuture<Response> sendAsync(@NotNull RawMercuryRequest request) {
+        return sendAsync(request, REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Sends the request without blocking. The future fails with a {@link MercuryTimeoutException} if the response
+     * doesn't arrive within {@code timeout} milliseconds. Cancelling it drops the pending response, unless the request
+     * is idempotent and may be shared with other callers.
+     */
+    @NotNull
+    public CompletableFuture<Response> sendAsync(@NotNull RawMercuryRequest request, long timeout) {
+        if (!FlightKey.isIdempotent(request)) return sendUncached(request, timeout);
+        return singleFlight(new FlightKey(request, null), timeout, flightTimeout -> sendGet(request, flightTimeout));
+    }
+
+    /**
+     * Makes identical requests that are in flight at the same time share the same result. Every caller gets its own
+     * future with its own deadline, cancelling it doesn't affect the others nor the shared request. A caller whose
+     * deadline is later than the one of the request in flight sends its own request instead.
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> singleFlight(@NotNull FlightKey key, long timeout, @NotNull LongFunction<CompletableFuture<T>> sender) {
+        Flight<T> flight = new Flight<>(System.currentTimeMillis() + timeout);
+        Flight<?> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            if (existing.deadline < flight.deadline) return sender.apply(timeout);
+
+            LOGGER.trace("Joined in-flight request: " + key.uri);
+            return withTimeout(((Flight<T>) existing).shared, key.uri, timeout);
+        }
+
+        CompletableFuture<T> source;
+        try {
+            source = sender.apply(timeout);
+        } catch (RuntimeException ex) {
+            source = new CompletableFuture<>();
+            source.completeExceptionally(ex);
+        }
+
+        source.whenComplete((result, ex) -> {
+            inFlight.remove(key, flight);
+            if (ex == null) flight.shared.complete(result);
+            else flight.shared.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+        });
+
+        return withTimeout(flight.shared, key.uri, timeout);
+    }
+
+    /**
+     * @return A future with the result of {@code source} which fails with a {@link MercuryTimeoutException} after
+     * {@code timeout} milliseconds. Cancelling it doesn't cancel {@code source}.
+     */
+    @NotNull
+    private <T> CompletableFuture<T> withTimeout(@NotNull CompletableFuture<T> source, @NotNull String uri, long timeout) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            ScheduledFuture<?> deadline = scheduler.schedule(() -> result.completeExceptionally(new MercuryTimeoutException(uri, timeout)),
+                    timeout, TimeUnit.MILLISECONDS);
+            result.whenComplete((r, ex) -> deadline.cancel(false));
+        } catch (RejectedExecutionException ex) {
+            result.completeExceptionally(new IOException("Client is closed!"));
+        }
+
+        source.whenComplete((r, ex) -> {
+            if (ex == null) result.complete(r);
+            else result.completeExceptionally(ex);
+        });
+
+        return result;
+    }
+
+    private static boolean acceptsGzip(@NotNull RawMercuryRequest request) {
+        for (Mercury.UserField field : request.header.getUserFieldsList())
+            if (field.getKey().equalsIgnoreCase("Accept-Encoding") && field.getValue().toStringUtf8().contains("gzip"))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Asks for a compressed response if the request is for a large payload. Only used for requests whose response is
+     * parsed here, raw requests are sent as they are.
+     */
+    @NotNull
+    private RawMercuryRequest negotiate(@NotNull RawMercuryRequest request) {
+        if (!compression || !FlightKey.isIdempotent(request) || acceptsGzip(request)) return request;
+
+        for (String prefix : COMPRESSIBLE_PREFIXES)
+            if (request.header.getUri().startsWith(prefix))
+                return request.withUserField("Accept-Encoding", "gzip");
+
+        return request;
+    }
+
+    @NotNull
+    private CompletableFuture<Response> sendGet(@NotNull RawMercuryRequest request, long timeout) {
+        if (!MetadataCache.isCacheable(request)) return sendUncached(request, timeout);
+        if (metadataCache == null) return sendBatched(request, timeout);
+
+        // The cache may hold a compressed response that a raw request without Accept-Encoding doesn't expect
+        if (!acceptsGzip(request)) return map(sendCached(request, timeout), MercuryClient::inflate);
+        else return sendCached(request, timeout);
+    }
+
+    @NotNull
+    private static Response inflate(@NotNull Response resp) {
+        try {
+            return resp.inflated();
+        } catch (IOException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    @NotNull
+    private CompletableFuture<Response> sendCached(@NotNull RawMercuryRequest request, long timeout) {
+
+        String uri = request.header.getUri();
+        MetadataCache.Entry entry = metadataCache.get(uri);
+        if (entry != null && entry.isFresh()) {
+            LOGGER.trace("Metadata cache hit: " + uri);
+            return CompletableFuture.completedFuture(entry.response(uri));
+        }
+
+        if (entry != null && entry.etag != null)
+            request = request.withUserField("If-None-Match", entry.etag);
+
+        return map(sendBatched(request, timeout), resp -> metadataCache.put(uri, entry, resp));
+    }
+
+    @NotNull
+    private CompletableFuture<Response> sendBatched(@NotNull RawMercuryRequest request, long timeout) {
+        if (batcher != null) {
+            CompletableFuture<Response> future = batcher.send(request, timeout);
+            if (future != null) return future;
+        }
+
+        return sendUncached(request, timeout);
+    }
+
+    @NotNull
+    public <W extends JsonWrapper> CompletableFuture<W> sendAsync(@NotNull JsonMercuryRequest<W> request) {
+        return map(sendAsync(negotiate(request.request)), resp -> {
+            try {
+                return request.instantiate(checkStatus(resp));
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        });
+    }
+
+    @NotNull
+    public <P extends AbstractMessageLite> CompletableFuture<P> sendAsync(@NotNull ProtobufMercuryRequest<P> request) {
+        RawMercuryRequest raw = negotiate(request.request);
+        if (!FlightKey.isIdempotent(raw)) return parse(raw, request.parser);
+        return singleFlight(new FlightKey(raw, request.parser), REQUEST_TIMEOUT, timeout -> parse(raw, request.parser, timeout));
+    }
+
+    @NotNull
+    private <P extends AbstractMessageLite> CompletableFuture<P> parse(@NotNull RawMercuryRequest request, @NotNull Parser<P> parser) {
+        return parse(request, parser, REQUEST_TIMEOUT);
+    }
+
+    @NotNull
+    private <P extends AbstractMessageLite> CompletableFuture<P> parse(@NotNull RawMercuryRequest request, @NotNull Parser<P> parser, long timeout) {
+        return map(sendAsync(request, timeout), resp -> {
+            try {
+                return parser.parseFrom(checkStatus(resp).codedInput());
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        });
+    }
+
+    @NotNull
+    public <P extends AbstractMessageLite> CompletableFuture<ProtoWrapperResponse<P>> sendAsync(@NotNull ProtoJsonMercuryRequest<P> request) {
+        return map(sendAsync((ProtobufMercuryRequest<P>) request), proto -> new ProtoWrapperResponse<>(proto, request.converter));
+    }
+
+    @NotNull
+    CompletableFuture<Response> sendUncached(@NotNull RawMercuryRequest request, long timeout) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+
+        long seq;
+        try {
+            seq = sendRequest(request, future::complete);
+        } catch (IOException ex) {
+            future.completeExceptionally(ex);
+            return future;
+        }
+
+        ScheduledFuture<?> deadline = null;
+        try {
+            deadline = scheduler.schedule(() -> future.completeExceptionally(new MercuryTimeoutException(request.header.getUri(), timeout)),
+                    timeout, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(new IOException("Client is closed!"));
+        }
+
+        ScheduledFuture<?> finalDeadline = deadline;
+        future.whenComplete((resp, ex) -> {
+            if (finalDeadline != null) finalDeadline.cancel(false);
+            if (ex != null) {
+                callbacks.remove(seq);
+
+                MercuryStats.Trace trace = traces.remove(seq);
+                if (trace != null) stats.fail(trace, ex instanceof MercuryTimeoutException);
+            }
+        });
+
+        pending.put(seq, future);
+        future.whenComplete((resp, ex) -> pending.remove(seq));
+        return future;
     }
 
+    /**
+     * Sends the request without a future. The callback is dropped if no response arrives within {@link #REQUEST_TIMEOUT}.
+     */
     public void send(@NotNull RawMercuryRequest request, @NotNull Callback callback) throws IOException {
+        long seq = sendRequest(request, callback);
+
+        try {
+            scheduler.schedule(() -> expire(seq, request.header.getUri()), REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            expire(seq, request.header.getUri());
+        }
+    }
+
+    private void expire(long seq, @NotNull String uri) {
+        if (callbacks.remove(seq) == null) return;
+
+        MercuryStats.Trace trace = traces.remove(seq);
+        if (trace != null) stats.fail(trace, true);
+        LOGGER.warn(String.format("Mercury request timed out, seq: %d, uri: %s", seq, uri));
+    }
+
+    /**
+     * @return The sequence number of the request
+     */
+    private long sendRequest(@NotNull RawMercuryRequest request, @NotNull Callback callback) throws IOException {
         ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
         DataOutputStream out = new DataOutputStream(bytesOut);
 
-        int seq;
-        synchronized (seqHolder) {
-            seq = seqHolder.getAndIncrement();
-        }
+        int seq = seqHolder.getAndIncrement();
+        MercuryStats.Trace trace = stats.start(request.header.getUri(), request.header.getMethod());
 
-        LOGGER.trace(String.format("Send Mercury request, seq: %d, uri: %s, method: %s", seq, request.header.getUri(), request.header.getMethod()));
+        if (LOGGER.isTraceEnabled())
+            LOGGER.trace(String.format("Send Mercury request, seq: %d, uri: %s, method: %s", seq, request.header.getUri(), request.header.getMethod()));
 
         out.writeShort((short) 4); // Seq length
         out.writeInt(seq); // Seq
@@ -115,64 +448,104 @@ public class MercuryClient extends PacketsManager {
             out.write(part);
         }
 
-        Packet.Type cmd = Packet.Type.forMethod(request.header.getMethod());
-        session.send(cmd, bytesOut.toByteArray());
-
+        traces.put((long) seq, trace);
         callbacks.put((long) seq, callback);
+
+        try {
+            Packet.Type cmd = Packet.Type.forMethod(request.header.getMethod());
+            session.send(cmd, bytesOut.toByteArray());
+            trace.sentAt = System.nanoTime();
+        } catch (IOException | RuntimeException ex) {
+            callbacks.remove((long) seq);
+            traces.remove((long) seq);
+            stats.fail(trace, false);
+            throw ex;
+        }
+
+        return seq;
     }
 
+    /**
+     * Reassembles the responses on the receiver thread, so that the parts are added in the order they arrived.
+     * Parts are slices of the packet payload, complete responses are handled on the executor.
+     */
     @Override
-    protected void handle(@NotNull Packet packet) throws InvalidProtocolBufferException {
+    protected void appendToQueue(@NotNull Packet packet) {
         ByteBuffer payload = ByteBuffer.wrap(packet.payload);
-        int seqLength = payload.getShort();
-        long seq;
-        if (seqLength == 2) seq = payload.getShort();
-        else if (seqLength == 4) seq = payload.getInt();
-        else if (seqLength == 8) seq = payload.getLong();
-        else throw new IllegalArgumentException("Unknown seq length: " + seqLength);
+        long seq = -1;
+        try {
+            int seqLength = payload.getShort();
+            if (seqLength == 2) seq = payload.getShort();
+            else if (seqLength == 4) seq = payload.getInt();
+            else if (seqLength == 8) seq = payload.getLong();
+            else {
+                LOGGER.warn(String.format("Dropping packet with unknown seq length, cmd: %s, length: %d", packet.type(), seqLength));
+                return;
+            }
+
+            append(packet, payload, seq);
+        } catch (RuntimeException ex) {
+            LOGGER.warn(String.format("Dropping malformed packet, cmd: %s, seq: %d", packet.type(), seq), ex);
+            if (seq != -1) partials.remove(seq);
+        }
+    }
 
+    private void append(@NotNull Packet packet, @NotNull ByteBuffer payload, long seq) {
         byte flags = payload.get();
         short parts = payload.getShort();
 
-        BytesArrayList partial = partials.get(seq);
+        Partial partial = partials.get(seq);
+        MercuryStats.Trace trace = traces.get(seq);
         if (partial == null || flags == 0) {
-            partial = new BytesArrayList();
+            partial = new Partial(seq);
             partials.put(seq, partial);
+            if (trace != null) trace.firstPartAt = System.nanoTime();
         }
 
-        LOGGER.trace(String.format("Handling packet, cmd: %s, seq: %d, flags: %d, parts: %d", packet.type(), seq, flags, parts));
+        if (LOGGER.isTraceEnabled())
+            LOGGER.trace(String.format("Handling packet, cmd: %s, seq: %d, flags: %d, parts: %d", packet.type(), seq, flags, parts));
 
         for (int i = 0; i < parts; i++) {
-            short size = payload.getShort();
-            byte[] buffer = new byte[size];
-            payload.get(buffer);
-            partial.add(buffer);
+            int size = payload.getShort() & 0xFFFF;
+            partial.parts.add(UnsafeByteOperations.unsafeWrap(packet.payload, payload.position(), size));
+            payload.position(payload.position() + size);
         }
 
         if (flags != 1) return;
 
         partials.remove(seq);
+        if (trace != null) trace.lastPartAt = System.nanoTime();
+        completed.put(packet, partial);
+        super.appendToQueue(packet);
+    }
 
+    @Override
+    protected void handle(@NotNull Packet packet) throws InvalidProtocolBufferException {
+        Partial partial = completed.remove(packet);
+        if (partial == null) return;
 
-        Mercury.Header header = Mercury.Header.parseFrom(partial.get(0));
-        Response resp = new Response(header, partial);
+        long seq = partial.seq;
+        Mercury.Header header = Mercury.Header.parseFrom(partial.parts.get(0));
+        Response resp = new Response(header, partial.parts.subList(1, partial.parts.size()));
 
         if (packet.is(Packet.Type.MercurySubEvent)) {
-            boolean dispatched = false;
-            for (InternalSubListener sub : subscriptions) {
-                if (sub.matches(header.getUri())) {
-                    sub.dispatch(resp);
-                    dispatched = true;
-                }
-            }
+            List<SubListener> listeners = subscriptions.match(header.getUri());
+            for (SubListener listener : listeners) listener.event(resp);
 
-            if (!dispatched)
+            if (listeners.isEmpty())
                 LOGGER.warn(String.format("Couldn't dispatch Mercury sub event, seq: %d, uri: %s, code %d", seq, header.getUri(), header.getStatusCode()));
-        } else if (packet.is(Packet.Type.MercuryReq) || packet.is(Packet.Type.MercurySub)) {
+        } else if (packet.is(Packet.Type.MercuryReq) || packet.is(Packet.Type.MercurySub) || packet.is(Packet.Type.MercuryUnsub)) {
             Callback callback = callbacks.remove(seq);
+            MercuryStats.Trace trace = traces.remove(seq);
             if (callback != null) {
-                callback.response(resp);
+                if (trace != null) trace.dispatchedAt = System.nanoTime();
+                try {
+                    callback.response(resp);
+                } finally {
+                    if (trace != null) stats.finish(trace, resp.statusCode, size(resp));
+                }
             } else {
+                if (trace != null) stats.fail(trace, false);
                 LOGGER.warn(String.format("Skipped Mercury response, seq: %d, uri: %s, code %d", seq, header.getUri(), header.getStatusCode()));
             }
         } else {
@@ -180,16 +553,47 @@ public class MercuryClient extends PacketsManager {
         }
     }
 
+    private static long size(@NotNull Response resp) {
+        long size = 0;
+        for (ByteString part : resp.payload) size += part.size();
+        return size;
+    }
+
+    @NotNull
+    public MercuryStats stats() {
+        return stats;
+    }
+
     @Override
     protected void exception(@NotNull Exception ex) {
         LOGGER.fatal("Failed handling packet!", ex);
     }
 
+    @Override
+    public void close() {
+        super.close();
+        scheduler.shutdownNow();
+
+        IOException ex = new IOException("Client is closed!");
+        for (CompletableFuture<Response> future : pending.values()) future.completeExceptionally(ex);
+        for (MercuryStats.Trace trace : traces.values()) stats.fail(trace, false);
+        traces.clear();
+        callbacks.clear();
+    }
+
+    public interface Configuration {
+        /**
+         * @return Whether large responses, such as playlists, should be requested compressed
+         */
+        boolean mercuryCompression();
+    }
+
     public interface Callback {
         void response(@NotNull Response response);
     }
 
     public static class ProtoWrapperResponse<P extends AbstractMessageLite> {
+        private static final JsonParser JSON_PARSER = new JsonParser();
         private final P proto;
         private final ProtoJsonMercuryRequest.JsonConverter<P> converter;
         private JsonElement json;
@@ -204,11 +608,31 @@ public class MercuryClient extends PacketsManager {
             return proto;
         }
 
+        /**
+         * @return The message as a JSON tree, prefer {@link #writeJson(JsonWriter, JsonProjection)} for large messages
+         */
         @NotNull
         public JsonElement json() {
-            if (json == null) json = converter.convert(proto);
+            if (json == null) {
+                StringWriter writer = new StringWriter();
+                try {
+                    writeJson(new JsonWriter(writer), null);
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+
+                json = JSON_PARSER.parse(writer.toString());
+            }
+
             return json;
         }
+
+        /**
+         * Writes the message without building a JSON tree, only the fields in {@code projection} are written.
+         */
+        public void writeJson(@NotNull JsonWriter out, @Nullable JsonProjection projection) throws IOException {
+            converter.write(out, proto, projection);
+        }
     }
 
     public static class PubSubException extends MercuryException {
@@ -217,39 +641,154 @@ public class MercuryClient extends PacketsManager {
         }
     }
 
-    private static class InternalSubListener {
+    public static class MercuryTimeoutException extends IOException {
+        private MercuryTimeoutException(@NotNull String uri, long timeout) {
+            super(String.format("Request timed out after %dms: %s", timeout, uri));
+        }
+    }
+
+    public static class MercuryException extends Exception {
+        private MercuryException(Response response) {
+            super(String.format("status: %d", response.statusCode));
+        }
+    }
+
+    /**
+     * Identifies identical requests by method, URI, content type and user fields, and by the parser of the response.
+     */
+    private static final class FlightKey {
         private final String uri;
-        private final SubListener listener;
+        private final String request;
+        private final Object parser;
+
+        FlightKey(@NotNull RawMercuryRequest request, @Nullable Object parser) {
+            StringBuilder builder = new StringBuilder();
+            builder.append(request.header.getMethod()).append(' ').append(request.header.getUri())
+                    .append('\n').append(request.header.getContentType());
+            for (Mercury.UserField field : request.header.getUserFieldsList())
+                builder.append('\n').append(field.getKey()).append('=').append(field.getValue().toStringUtf8());
+
+            this.uri = request.header.getUri();
+            this.request = builder.toString();
+            this.parser = parser;
+        }
 
-        InternalSubListener(@NotNull String uri, @NotNull SubListener listener) {
-            this.uri = uri;
-            this.listener = listener;
+        static boolean isIdempotent(@NotNull RawMercuryRequest request) {
+            return "GET".equals(request.header.getMethod()) && request.payload.length == 0;
         }
 
-        boolean matches(String uri) {
-            return uri.startsWith(this.uri);
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            FlightKey key = (FlightKey) o;
+            return parser == key.parser && request.equals(key.request);
         }
 
-        void dispatch(@NotNull Response resp) {
-            listener.event(resp);
+        @Override
+        public int hashCode() {
+            return 31 * request.hashCode() + System.identityHashCode(parser);
         }
     }
 
-    public static class MercuryException extends Exception {
-        private MercuryException(Response response) {
-            super(String.format("status: %d", response.statusCode));
+    /**
+     * A request in flight, shared by callers whose deadline isn't later than its own
+     */
+    private static final class Flight<T> {
+        private final CompletableFuture<T> shared = new CompletableFuture<>();
+        private final long deadline;
+
+        Flight(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    private static class Partial {
+        private final long seq;
+        private final List<ByteString> parts = new ArrayList<>();
+
+        Partial(long seq) {
+            this.seq = seq;
         }
     }
 
     public static class Response {
+        private static final int INFLATE_BUFFER_SIZE = 8192;
         public final String uri;
-        public final BytesArrayList payload;
+        public final List<ByteString> payload;
         public final int statusCode;
+        final List<Mercury.UserField> userFields;
 
-        private Response(@NotNull Mercury.Header header, @NotNull BytesArrayList payload) {
+        private Response(@NotNull Mercury.Header header, @NotNull List<ByteString> payload) {
             this.uri = header.getUri();
             this.statusCode = header.getStatusCode();
-            this.payload = payload.copyOfRange(1, payload.size());
+            this.userFields = header.getUserFieldsList();
+            this.payload = Collections.unmodifiableList(payload);
+        }
+
+        Response(@NotNull String uri, int statusCode, @NotNull List<ByteString> payload) {
+            this(uri, statusCode, payload, Collections.emptyList());
+        }
+
+        Response(@NotNull String uri, int statusCode, @NotNull List<ByteString> payload, @NotNull List<Mercury.UserField> userFields) {
+            this.uri = uri;
+            this.statusCode = statusCode;
+            this.userFields = userFields;
+            this.payload = Collections.unmodifiableList(payload);
+        }
+
+        /**
+         * @return Whether the payload is gzip compressed, protobuf and JSON payloads can't start with the gzip magic
+         */
+        public boolean isCompressed() {
+            ByteString body = body();
+            return body.size() >= 2 && body.byteAt(0) == (byte) 0x1f && body.byteAt(1) == (byte) 0x8b;
+        }
+
+        /**
+         * @return The payload, inflated while it's read if it's compressed
+         */
+        @NotNull
+        public InputStream stream() throws IOException {
+            InputStream in = body().newInput();
+            if (isCompressed()) return new GZIPInputStream(in, INFLATE_BUFFER_SIZE);
+            else return in;
+        }
+
+        /**
+         * @return A protobuf input for the payload, aliasing the parts if it isn't compressed
+         */
+        @NotNull
+        CodedInputStream codedInput() throws IOException {
+            if (isCompressed()) return CodedInputStream.newInstance(stream());
+
+            CodedInputStream in = body().newCodedInput();
+            in.enableAliasing(true);
+            return in;
+        }
+
+        /**
+         * @return This response with the payload inflated, or itself if it isn't compressed
+         */
+        @NotNull
+        Response inflated() throws IOException {
+            if (!isCompressed()) return this;
+
+            try (InputStream in = stream()) {
+                return new Response(uri, statusCode, Collections.singletonList(ByteString.readFrom(in)), userFields);
+            }
+        }
+
+        /**
+         * @return All the parts of the payload, without copying them
+         */
+        @NotNull
+        public ByteString body() {
+            if (payload.size() == 1) return payload.get(0);
+
+            ByteString body = ByteString.EMPTY;
+            for (ByteString part : payload) body = body.concat(part);
+            return body;
         }
     }
 }
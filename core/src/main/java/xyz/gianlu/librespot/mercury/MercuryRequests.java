@@ -3,6 +3,7 @@ package xyz.gianlu.librespot.mercury;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.ProtocolStringList;
 import org.jetbrains.annotations.Contract;
@@ -18,65 +19,68 @@ import xyz.gianlu.librespot.mercury.model.ArtistId;
 import xyz.gianlu.librespot.mercury.model.PlaylistId;
 import xyz.gianlu.librespot.mercury.model.TrackId;
 
+import java.io.IOException;
 import java.util.List;
 
+import static xyz.gianlu.librespot.mercury.JsonProjection.child;
+import static xyz.gianlu.librespot.mercury.JsonProjection.includes;
+
 /**
  * @author Gianlu
  */
 public final class MercuryRequests {
-    private static final ProtoJsonMercuryRequest.JsonConverter<Playlist4Changes.SelectedListContent> SELECTED_LIST_CONTENT_JSON_CONVERTER = proto -> {
-        List<Playlist4Content.Item> items = proto.getContents().getItemsList();
-        JsonArray array = new JsonArray(items.size());
-        for (Playlist4Content.Item item : items) array.add(item.getUri());
-        return array;
+    private static final ProtoJsonMercuryRequest.JsonConverter<Playlist4Changes.SelectedListContent> SELECTED_LIST_CONTENT_JSON_CONVERTER = (out, proto, projection) -> {
+        out.beginArray();
+        for (Playlist4Content.Item item : proto.getContents().getItemsList()) out.value(item.getUri());
+        out.endArray();
     };
-    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.Date> DATE_JSON_CONVERTER = proto -> {
-        JsonObject obj = new JsonObject();
-        obj.addProperty("year", proto.getYear());
-        obj.addProperty("month", proto.getMonth());
-        obj.addProperty("day", proto.getDay());
-        return obj;
+    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.Date> DATE_JSON_CONVERTER = (out, proto, projection) -> {
+        out.beginObject();
+        put(out, projection, "year", proto.getYear());
+        put(out, projection, "month", proto.getMonth());
+        put(out, projection, "day", proto.getDay());
+        out.endObject();
     };
-    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.Restriction> RESTRICTION_JSON_CONVERTER = proto -> {
-        JsonObject obj = new JsonObject();
-        obj.addProperty("allowed", proto.getCountriesAllowed());
-        obj.addProperty("forbidden", proto.getCountriesForbidden());
-        obj.addProperty("type", proto.getTyp().name());
-        putArray(obj, "catalogues", proto.getCatalogueStrList());
-        return obj;
+    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.Restriction> RESTRICTION_JSON_CONVERTER = (out, proto, projection) -> {
+        out.beginObject();
+        put(out, projection, "allowed", proto.getCountriesAllowed());
+        put(out, projection, "forbidden", proto.getCountriesForbidden());
+        put(out, projection, "type", proto.getTyp().name());
+        putArray(out, projection, "catalogues", proto.getCatalogueStrList());
+        out.endObject();
     };
-    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.Copyright> COPYRIGHT_JSON_CONVERTER = proto -> {
-        JsonObject obj = new JsonObject();
-        obj.addProperty("text", proto.getText());
-        obj.addProperty("type", proto.getTyp().name());
-        return obj;
+    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.Copyright> COPYRIGHT_JSON_CONVERTER = (out, proto, projection) -> {
+        out.beginObject();
+        put(out, projection, "text", proto.getText());
+        put(out, projection, "type", proto.getTyp().name());
+        out.endObject();
     };
-    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.Image> IMAGE_JSON_CONVERTER = proto -> {
-        JsonObject obj = new JsonObject();
-        obj.addProperty("width", proto.getWidth());
-        obj.addProperty("height", proto.getHeight());
-        obj.addProperty("size", proto.getSize().name());
-        obj.addProperty("fileId", Utils.toBase64(proto.getFileId()));
-        return obj;
+    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.Image> IMAGE_JSON_CONVERTER = (out, proto, projection) -> {
+        out.beginObject();
+        put(out, projection, "width", proto.getWidth());
+        put(out, projection, "height", proto.getHeight());
+        put(out, projection, "size", proto.getSize().name());
+        if (includes(projection, "fileId")) put(out, projection, "fileId", Utils.toBase64(proto.getFileId()));
+        out.endObject();
     };
-    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.ExternalId> EXTERNAL_ID_JSON_CONVERTER = proto -> {
-        JsonObject obj = new JsonObject();
-        obj.addProperty("type", proto.getTyp());
-        obj.addProperty("id", proto.getId());
-        return obj;
+    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.ExternalId> EXTERNAL_ID_JSON_CONVERTER = (out, proto, projection) -> {
+        out.beginObject();
+        put(out, projection, "type", proto.getTyp());
+        put(out, projection, "id", proto.getId());
+        out.endObject();
     };
-    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.ActivityPeriod> ACTIVITY_PERIOD_JSON_CONVERTER = proto -> {
-        JsonObject obj = new JsonObject();
-        obj.addProperty("startYear", proto.getStartYear());
-        obj.addProperty("endYear", proto.getEndYear());
-        obj.addProperty("decade", proto.getDecade());
-        return obj;
+    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.ActivityPeriod> ACTIVITY_PERIOD_JSON_CONVERTER = (out, proto, projection) -> {
+        out.beginObject();
+        put(out, projection, "startYear", proto.getStartYear());
+        put(out, projection, "endYear", proto.getEndYear());
+        put(out, projection, "decade", proto.getDecade());
+        out.endObject();
     };
-    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.AudioFile> AUDIO_FILE_JSON_CONVERTER = proto -> {
-        JsonObject obj = new JsonObject();
-        obj.addProperty("fileId", Utils.toBase64(proto.getFileId()));
-        obj.addProperty("format", proto.getFormat().name());
-        return obj;
+    private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.AudioFile> AUDIO_FILE_JSON_CONVERTER = (out, proto, projection) -> {
+        out.beginObject();
+        if (includes(projection, "fileId")) put(out, projection, "fileId", Utils.toBase64(proto.getFileId()));
+        put(out, projection, "format", proto.getFormat().name());
+        out.endObject();
     };
     private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.Artist> ARTIST_JSON_CONVERTER;
     private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.Album> ALBUM_JSON_CONVERTER;
@@ -89,138 +93,152 @@ public final class MercuryRequests {
     private static final ProtoJsonMercuryRequest.JsonConverter<Metadata.Biography> BIOGRAPHY_JSON_CONVERTER;
 
     static {
-        SALE_PERIOD_JSON_CONVERTER = proto -> {
-            JsonObject obj = new JsonObject();
-            obj.add("start", DATE_JSON_CONVERTER.convert(proto.getStart()));
-            obj.add("end", DATE_JSON_CONVERTER.convert(proto.getEnd()));
-            putArray(obj, "restrictions", proto.getRestrictionList(), RESTRICTION_JSON_CONVERTER);
-            return obj;
+        SALE_PERIOD_JSON_CONVERTER = (out, proto, projection) -> {
+            out.beginObject();
+            put(out, projection, "start", proto.getStart(), DATE_JSON_CONVERTER);
+            put(out, projection, "end", proto.getEnd(), DATE_JSON_CONVERTER);
+            putArray(out, projection, "restrictions", proto.getRestrictionList(), RESTRICTION_JSON_CONVERTER);
+            out.endObject();
         };
-        IMAGE_GROUP_JSON_CONVERTER = proto -> {
-            JsonObject obj = new JsonObject();
-            putArray(obj, "images", proto.getImageList(), IMAGE_JSON_CONVERTER);
-            return obj;
+        IMAGE_GROUP_JSON_CONVERTER = (out, proto, projection) -> {
+            out.beginObject();
+            putArray(out, projection, "images", proto.getImageList(), IMAGE_JSON_CONVERTER);
+            out.endObject();
         };
-        BIOGRAPHY_JSON_CONVERTER = proto -> {
-            JsonObject obj = new JsonObject();
-            obj.addProperty("text", proto.getText());
-            putArray(obj, "portraits", proto.getPortraitList(), IMAGE_JSON_CONVERTER);
-            putArray(obj, "portraitGroups", proto.getPortraitGroupList(), IMAGE_GROUP_JSON_CONVERTER);
-            return obj;
+        BIOGRAPHY_JSON_CONVERTER = (out, proto, projection) -> {
+            out.beginObject();
+            put(out, projection, "text", proto.getText());
+            putArray(out, projection, "portraits", proto.getPortraitList(), IMAGE_JSON_CONVERTER);
+            putArray(out, projection, "portraitGroups", proto.getPortraitGroupList(), IMAGE_GROUP_JSON_CONVERTER);
+            out.endObject();
         };
         ARTIST_JSON_CONVERTER = new ProtoJsonMercuryRequest.JsonConverter<Metadata.Artist>() {
             @Override
-            public @NotNull JsonElement convert(Metadata.@NotNull Artist proto) {
-                JsonObject obj = new JsonObject();
-                obj.addProperty("gid", Utils.bytesToHex(proto.getGid()));
-                obj.addProperty("name", proto.getName());
-                obj.addProperty("popularity", proto.getPopularity());
-                obj.addProperty("isPortraitAlbumCover", proto.getIsPortraitAlbumCover());
-                obj.add("portraitGroup", IMAGE_GROUP_JSON_CONVERTER.convert(proto.getPortraitGroup()));
-                putArray(obj, "genres", proto.getGenreList());
-                putArray(obj, "restrictions", proto.getRestrictionList(), RESTRICTION_JSON_CONVERTER);
-                putArray(obj, "externalIds", proto.getExternalIdList(), EXTERNAL_ID_JSON_CONVERTER);
-                putArray(obj, "related", proto.getRelatedList(), this);
-                putArray(obj, "portraits", proto.getPortraitList(), IMAGE_JSON_CONVERTER);
-                putArray(obj, "albumGroups", proto.getAlbumGroupList(), ALBUM_GROUP_JSON_CONVERTER);
-                putArray(obj, "singleGroups", proto.getSingleGroupList(), ALBUM_GROUP_JSON_CONVERTER);
-                putArray(obj, "compilationGroups", proto.getCompilationGroupList(), ALBUM_GROUP_JSON_CONVERTER);
-                putArray(obj, "appearsOnGroups", proto.getAppearsOnGroupList(), ALBUM_GROUP_JSON_CONVERTER);
-                putArray(obj, "biographies", proto.getBiographyList(), BIOGRAPHY_JSON_CONVERTER);
-                putArray(obj, "topTracks", proto.getTopTrackList(), TOP_TRACKS_JSON_CONVERTER);
-                putArray(obj, "activityPeriods", proto.getActivityPeriodList(), ACTIVITY_PERIOD_JSON_CONVERTER);
-                return obj;
+            public void write(@NotNull JsonWriter out, Metadata.@NotNull Artist proto, @Nullable JsonProjection projection) throws IOException {
+                out.beginObject();
+                if (includes(projection, "gid")) put(out, projection, "gid", Utils.bytesToHex(proto.getGid()));
+                put(out, projection, "name", proto.getName());
+                put(out, projection, "popularity", proto.getPopularity());
+                put(out, projection, "isPortraitAlbumCover", proto.getIsPortraitAlbumCover());
+                put(out, projection, "portraitGroup", proto.getPortraitGroup(), IMAGE_GROUP_JSON_CONVERTER);
+                putArray(out, projection, "genres", proto.getGenreList());
+                putArray(out, projection, "restrictions", proto.getRestrictionList(), RESTRICTION_JSON_CONVERTER);
+                putArray(out, projection, "externalIds", proto.getExternalIdList(), EXTERNAL_ID_JSON_CONVERTER);
+                putArray(out, projection, "related", proto.getRelatedList(), this);
+                putArray(out, projection, "portraits", proto.getPortraitList(), IMAGE_JSON_CONVERTER);
+                putArray(out, projection, "albumGroups", proto.getAlbumGroupList(), ALBUM_GROUP_JSON_CONVERTER);
+                putArray(out, projection, "singleGroups", proto.getSingleGroupList(), ALBUM_GROUP_JSON_CONVERTER);
+                putArray(out, projection, "compilationGroups", proto.getCompilationGroupList(), ALBUM_GROUP_JSON_CONVERTER);
+                putArray(out, projection, "appearsOnGroups", proto.getAppearsOnGroupList(), ALBUM_GROUP_JSON_CONVERTER);
+                putArray(out, projection, "biographies", proto.getBiographyList(), BIOGRAPHY_JSON_CONVERTER);
+                putArray(out, projection, "topTracks", proto.getTopTrackList(), TOP_TRACKS_JSON_CONVERTER);
+                putArray(out, projection, "activityPeriods", proto.getActivityPeriodList(), ACTIVITY_PERIOD_JSON_CONVERTER);
+                out.endObject();
             }
         };
         ALBUM_JSON_CONVERTER = new ProtoJsonMercuryRequest.JsonConverter<Metadata.Album>() {
             @Override
-            public @NotNull JsonElement convert(Metadata.@NotNull Album proto) {
-                JsonObject obj = new JsonObject();
-                obj.addProperty("gid", Utils.bytesToHex(proto.getGid()));
-                obj.addProperty("name", proto.getName());
-                obj.addProperty("popularity", proto.getPopularity());
-                obj.addProperty("label", proto.getLabel());
-                putArray(obj, "genres", proto.getGenreList());
-                putArray(obj, "reviews", proto.getReviewList());
-                putArray(obj, "artists", proto.getArtistList(), ARTIST_JSON_CONVERTER);
-                putArray(obj, "related", proto.getRelatedList(), ALBUM_JSON_CONVERTER);
-                obj.addProperty("type", proto.getTyp().name());
-                obj.add("date", DATE_JSON_CONVERTER.convert(proto.getDate()));
-                putArray(obj, "discs", proto.getDiscList(), DISC_JSON_CONVERTER);
-                putArray(obj, "salePeriods", proto.getSalePeriodList(), SALE_PERIOD_JSON_CONVERTER);
-                putArray(obj, "restrictions", proto.getRestrictionList(), RESTRICTION_JSON_CONVERTER);
-                putArray(obj, "copyrights", proto.getCopyrightList(), COPYRIGHT_JSON_CONVERTER);
-                obj.add("coverGroup", IMAGE_GROUP_JSON_CONVERTER.convert(proto.getCoverGroup()));
-                putArray(obj, "covers", proto.getCoverList(), IMAGE_JSON_CONVERTER);
-                putArray(obj, "externalIds", proto.getExternalIdList(), EXTERNAL_ID_JSON_CONVERTER);
-                return obj;
+            public void write(@NotNull JsonWriter out, Metadata.@NotNull Album proto, @Nullable JsonProjection projection) throws IOException {
+                out.beginObject();
+                if (includes(projection, "gid")) put(out, projection, "gid", Utils.bytesToHex(proto.getGid()));
+                put(out, projection, "name", proto.getName());
+                put(out, projection, "popularity", proto.getPopularity());
+                put(out, projection, "label", proto.getLabel());
+                putArray(out, projection, "genres", proto.getGenreList());
+                putArray(out, projection, "reviews", proto.getReviewList());
+                putArray(out, projection, "artists", proto.getArtistList(), ARTIST_JSON_CONVERTER);
+                putArray(out, projection, "related", proto.getRelatedList(), this);
+                put(out, projection, "type", proto.getTyp().name());
+                put(out, projection, "date", proto.getDate(), DATE_JSON_CONVERTER);
+                putArray(out, projection, "discs", proto.getDiscList(), DISC_JSON_CONVERTER);
+                putArray(out, projection, "salePeriods", proto.getSalePeriodList(), SALE_PERIOD_JSON_CONVERTER);
+                putArray(out, projection, "restrictions", proto.getRestrictionList(), RESTRICTION_JSON_CONVERTER);
+                putArray(out, projection, "copyrights", proto.getCopyrightList(), COPYRIGHT_JSON_CONVERTER);
+                put(out, projection, "coverGroup", proto.getCoverGroup(), IMAGE_GROUP_JSON_CONVERTER);
+                putArray(out, projection, "covers", proto.getCoverList(), IMAGE_JSON_CONVERTER);
+                putArray(out, projection, "externalIds", proto.getExternalIdList(), EXTERNAL_ID_JSON_CONVERTER);
+                out.endObject();
             }
         };
-        ALBUM_GROUP_JSON_CONVERTER = proto -> {
-            JsonObject obj = new JsonObject();
-            putArray(obj, "albums", proto.getAlbumList(), ALBUM_JSON_CONVERTER);
-            return obj;
+        ALBUM_GROUP_JSON_CONVERTER = (out, proto, projection) -> {
+            out.beginObject();
+            putArray(out, projection, "albums", proto.getAlbumList(), ALBUM_JSON_CONVERTER);
+            out.endObject();
         };
         TRACK_JSON_CONVERTER = new ProtoJsonMercuryRequest.JsonConverter<Metadata.Track>() {
             @Override
-            public @NotNull JsonElement convert(Metadata.@NotNull Track proto) {
-                JsonObject obj = new JsonObject();
-                obj.addProperty("gid", Utils.bytesToHex(proto.getGid()));
-                obj.addProperty("name", proto.getName());
-                obj.addProperty("number", proto.getNumber());
-                obj.addProperty("discNumber", proto.getDiscNumber());
-                obj.addProperty("duration", proto.getDuration());
-                obj.addProperty("popularity", proto.getPopularity());
-                obj.addProperty("explicit", proto.getExplicit());
-                obj.add("album", ALBUM_JSON_CONVERTER.convert(proto.getAlbum()));
-                putArray(obj, "artists", proto.getArtistList(), ARTIST_JSON_CONVERTER);
-                putArray(obj, "externalIds", proto.getExternalIdList(), EXTERNAL_ID_JSON_CONVERTER);
-                putArray(obj, "restrictions", proto.getRestrictionList(), RESTRICTION_JSON_CONVERTER);
-                putArray(obj, "alternatives", proto.getAlternativeList(), this);
-                putArray(obj, "salePeriods", proto.getSalePeriodList(), SALE_PERIOD_JSON_CONVERTER);
-                putArray(obj, "previews", proto.getPreviewList(), AUDIO_FILE_JSON_CONVERTER);
-                putArray(obj, "files", proto.getFileList(), AUDIO_FILE_JSON_CONVERTER);
-                return obj;
+            public void write(@NotNull JsonWriter out, Metadata.@NotNull Track proto, @Nullable JsonProjection projection) throws IOException {
+                out.beginObject();
+                if (includes(projection, "gid")) put(out, projection, "gid", Utils.bytesToHex(proto.getGid()));
+                put(out, projection, "name", proto.getName());
+                put(out, projection, "number", proto.getNumber());
+                put(out, projection, "discNumber", proto.getDiscNumber());
+                put(out, projection, "duration", proto.getDuration());
+                put(out, projection, "popularity", proto.getPopularity());
+                put(out, projection, "explicit", proto.getExplicit());
+                put(out, projection, "album", proto.getAlbum(), ALBUM_JSON_CONVERTER);
+                putArray(out, projection, "artists", proto.getArtistList(), ARTIST_JSON_CONVERTER);
+                putArray(out, projection, "externalIds", proto.getExternalIdList(), EXTERNAL_ID_JSON_CONVERTER);
+                putArray(out, projection, "restrictions", proto.getRestrictionList(), RESTRICTION_JSON_CONVERTER);
+                putArray(out, projection, "alternatives", proto.getAlternativeList(), this);
+                putArray(out, projection, "salePeriods", proto.getSalePeriodList(), SALE_PERIOD_JSON_CONVERTER);
+                putArray(out, projection, "previews", proto.getPreviewList(), AUDIO_FILE_JSON_CONVERTER);
+                putArray(out, projection, "files", proto.getFileList(), AUDIO_FILE_JSON_CONVERTER);
+                out.endObject();
             }
         };
-        DISC_JSON_CONVERTER = proto -> {
-            JsonObject obj = new JsonObject();
-            obj.addProperty("name", proto.getName());
-            obj.addProperty("number", proto.getNumber());
-            putArray(obj, "tracks", proto.getTrackList(), TRACK_JSON_CONVERTER);
-            return obj;
+        DISC_JSON_CONVERTER = (out, proto, projection) -> {
+            out.beginObject();
+            put(out, projection, "name", proto.getName());
+            put(out, projection, "number", proto.getNumber());
+            putArray(out, projection, "tracks", proto.getTrackList(), TRACK_JSON_CONVERTER);
+            out.endObject();
         };
-        TOP_TRACKS_JSON_CONVERTER = proto -> {
-            JsonObject obj = new JsonObject();
-            obj.addProperty("country", proto.getCountry());
-            putArray(obj, "tracks", proto.getTrackList(), TRACK_JSON_CONVERTER);
-            return obj;
+        TOP_TRACKS_JSON_CONVERTER = (out, proto, projection) -> {
+            out.beginObject();
+            put(out, projection, "country", proto.getCountry());
+            putArray(out, projection, "tracks", proto.getTrackList(), TRACK_JSON_CONVERTER);
+            out.endObject();
         };
     }
 
     private MercuryRequests() {
     }
 
-    private static <P extends AbstractMessage> void putArray(@NotNull JsonObject dest, @NotNull String key, @NotNull List<P> list, @NotNull ProtoJsonMercuryRequest.JsonConverter<P> converter) {
-        if (!list.isEmpty()) dest.add(key, makeArray(list, converter));
+    private static void put(@NotNull JsonWriter out, @Nullable JsonProjection projection, @NotNull String key, @NotNull String value) throws IOException {
+        if (includes(projection, key)) out.name(key).value(value);
     }
 
-    private static void putArray(@NotNull JsonObject dest, @NotNull String key, @NotNull ProtocolStringList list) {
-        if (!list.isEmpty()) dest.add(key, makeArray(list));
+    private static void put(@NotNull JsonWriter out, @Nullable JsonProjection projection, @NotNull String key, long value) throws IOException {
+        if (includes(projection, key)) out.name(key).value(value);
     }
 
-    @NotNull
-    private static JsonArray makeArray(@NotNull ProtocolStringList list) {
-        JsonArray array = new JsonArray(list.size());
-        for (String item : list) array.add(item);
-        return array;
+    private static void put(@NotNull JsonWriter out, @Nullable JsonProjection projection, @NotNull String key, boolean value) throws IOException {
+        if (includes(projection, key)) out.name(key).value(value);
     }
 
-    @NotNull
-    private static <P extends AbstractMessage> JsonArray makeArray(@NotNull List<P> list, @NotNull ProtoJsonMercuryRequest.JsonConverter<P> converter) {
-        JsonArray array = new JsonArray(list.size());
-        for (P proto : list) array.add(converter.convert(proto));
-        return array;
+    private static <P extends AbstractMessage> void put(@NotNull JsonWriter out, @Nullable JsonProjection projection, @NotNull String key, @NotNull P proto, @NotNull ProtoJsonMercuryRequest.JsonConverter<P> converter) throws IOException {
+        if (!includes(projection, key)) return;
+
+        out.name(key);
+        converter.write(out, proto, child(projection, key));
+    }
+
+    private static <P extends AbstractMessage> void putArray(@NotNull JsonWriter out, @Nullable JsonProjection projection, @NotNull String key, @NotNull List<P> list, @NotNull ProtoJsonMercuryRequest.JsonConverter<P> converter) throws IOException {
+        if (list.isEmpty() || !includes(projection, key)) return;
+
+        JsonProjection child = child(projection, key);
+        out.name(key).beginArray();
+        for (P proto : list) converter.write(out, proto, child);
+        out.endArray();
+    }
+
+    private static void putArray(@NotNull JsonWriter out, @Nullable JsonProjection projection, @NotNull String key, @NotNull ProtocolStringList list) throws IOException {
+        if (list.isEmpty() || !includes(projection, key)) return;
+
+        out.name(key).beginArray();
+        for (String item : list) out.value(item);
+        out.endArray();
     }
 
     @NotNull
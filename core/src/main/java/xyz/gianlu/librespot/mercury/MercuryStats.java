@@ -0,0 +1,199 @@
+package xyz.gianlu.librespot.mercury;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+import xyz.gianlu.librespot.LatencyHistogram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Latency and payload size histograms of the Mercury requests, grouped by URI template, and a log of the requests
+ * that were slow or failed.
+ * <p>
+ * Templates replace the IDs and usernames in the URI, {@code hm://metadata/4/track/<gid>} becomes
+ * {@code hm://metadata/4/track/{id}}.
+ *
+ * @author Gianlu
+ */
+public final class MercuryStats {
+    private static final Pattern ID = Pattern.compile("^(spotify:.+|[0-9a-fA-F]{16,}|[0-9A-Za-z]{22})$");
+    private static final int MAX_TEMPLATES = 256;
+    private static final String OTHER_TEMPLATE = "other";
+    private static final long SLOW_THRESHOLD = TimeUnit.SECONDS.toNanos(1);
+    private static final int SLOW_LOG_SIZE = 64;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final Trace[] slow = new Trace[SLOW_LOG_SIZE];
+    private int slowNext = 0;
+
+    MercuryStats() {
+    }
+
+    @NotNull
+    static String template(@NotNull String uri) {
+        int query = uri.indexOf('?');
+        if (query != -1) uri = uri.substring(0, query);
+
+        String[] segments = uri.split("/", -1);
+        StringBuilder builder = new StringBuilder(uri.length());
+        for (int i = 0; i < segments.length; i++) {
+            if (i > 0) builder.append('/');
+
+            if (i > 0 && segments[i - 1].equals("user") && !segments[i].isEmpty()) builder.append("{user}");
+            else if (ID.matcher(segments[i]).matches()) builder.append("{id}");
+            else builder.append(segments[i]);
+        }
+
+        return builder.toString();
+    }
+
+    private static long millis(long from, long to) {
+        return from == 0 || to == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(to - from);
+    }
+
+    @NotNull
+    private Endpoint endpoint(@NotNull String template) {
+        Endpoint endpoint = endpoints.get(template);
+        if (endpoint != null) return endpoint;
+
+        if (endpoints.size() >= MAX_TEMPLATES) template = OTHER_TEMPLATE;
+        return endpoints.computeIfAbsent(template, k -> new Endpoint());
+    }
+
+    @NotNull
+    Trace start(@NotNull String uri, @NotNull String method) {
+        Trace trace = new Trace(uri, method, endpoint(template(uri)));
+        trace.endpoint.inFlight.incrementAndGet();
+        inFlight.incrementAndGet();
+        return trace;
+    }
+
+    void finish(@NotNull Trace trace, int statusCode, long bytes) {
+        if (!trace.done.compareAndSet(false, true)) return;
+
+        trace.finishedAt = System.nanoTime();
+        trace.statusCode = statusCode;
+        trace.bytes = bytes;
+        trace.endpoint.inFlight.decrementAndGet();
+        inFlight.decrementAndGet();
+
+        long elapsed = trace.finishedAt - trace.startedAt;
+        trace.endpoint.latency.record(elapsed);
+        trace.endpoint.size.recordValue(bytes);
+        if (statusCode < 200 || statusCode >= 300) trace.endpoint.errors.increment();
+
+        if (elapsed >= SLOW_THRESHOLD) logSlow(trace);
+    }
+
+    void fail(@NotNull Trace trace, boolean timedOut) {
+        if (!trace.done.compareAndSet(false, true)) return;
+
+        trace.finishedAt = System.nanoTime();
+        trace.statusCode = -1;
+        trace.endpoint.inFlight.decrementAndGet();
+        inFlight.decrementAndGet();
+
+        if (timedOut) trace.endpoint.timeouts.increment();
+        else trace.endpoint.errors.increment();
+
+        logSlow(trace);
+    }
+
+    private synchronized void logSlow(@NotNull Trace trace) {
+        slow[slowNext] = trace;
+        slowNext = (slowNext + 1) % SLOW_LOG_SIZE;
+    }
+
+    @NotNull
+    public JsonObject toJson() {
+        JsonObject templates = new JsonObject();
+        for (Map.Entry<String, Endpoint> entry : endpoints.entrySet())
+            templates.add(entry.getKey(), entry.getValue().toJson());
+
+        JsonArray slowest = new JsonArray();
+        synchronized (this) {
+            for (int i = 0; i < SLOW_LOG_SIZE; i++) {
+                Trace trace = slow[(slowNext + SLOW_LOG_SIZE - 1 - i) % SLOW_LOG_SIZE];
+                if (trace == null) break;
+                slowest.add(trace.toJson());
+            }
+        }
+
+        JsonObject obj = new JsonObject();
+        obj.addProperty("inFlight", inFlight.get());
+        obj.add("templates", templates);
+        obj.add("slow", slowest);
+        return obj;
+    }
+
+    private static class Endpoint {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram size = new LatencyHistogram();
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+
+        @NotNull
+        JsonObject toJson() {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("inFlight", inFlight.get());
+            obj.addProperty("errors", errors.sum());
+            obj.addProperty("timeouts", timeouts.sum());
+            obj.add("latency", latency.toJson());
+            obj.add("size", size.toJson("Bytes"));
+            return obj;
+        }
+    }
+
+    /**
+     * The timing of a single request, each phase is measured with {@link System#nanoTime()}.
+     */
+    static final class Trace {
+        private final String uri;
+        private final String method;
+        private final Endpoint endpoint;
+        private final long timestamp = System.currentTimeMillis();
+        private final long startedAt = System.nanoTime();
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        volatile long sentAt = 0;
+        volatile long firstPartAt = 0;
+        volatile long lastPartAt = 0;
+        volatile long dispatchedAt = 0;
+        private volatile long finishedAt = 0;
+        private volatile int statusCode = 0;
+        private volatile long bytes = 0;
+
+        private Trace(@NotNull String uri, @NotNull String method, @NotNull Endpoint endpoint) {
+            this.uri = uri;
+            this.method = method;
+            this.endpoint = endpoint;
+        }
+
+        @NotNull
+        JsonObject toJson() {
+            JsonObject timing = new JsonObject();
+            timing.addProperty("sendMs", millis(startedAt, sentAt));
+            timing.addProperty("waitMs", millis(sentAt, firstPartAt));
+            timing.addProperty("receiveMs", millis(firstPartAt, lastPartAt));
+            timing.addProperty("queueMs", millis(lastPartAt, dispatchedAt));
+            timing.addProperty("handleMs", millis(dispatchedAt, finishedAt));
+            timing.addProperty("totalMs", millis(startedAt, finishedAt));
+
+            JsonObject obj = new JsonObject();
+            obj.addProperty("uri", uri);
+            obj.addProperty("method", method);
+            obj.addProperty("timestamp", timestamp);
+            obj.addProperty("statusCode", statusCode);
+            obj.addProperty("bytes", bytes);
+            obj.add("timing", timing);
+            return obj;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package xyz.gianlu.librespot.mercury;
+
+import com.google.protobuf.ByteString;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.common.Utils;
+import xyz.gianlu.librespot.common.proto.Mercury;
+import xyz.gianlu.librespot.player.CacheManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the responses of metadata and playlist GET requests, in memory and on disk.
+ * <p>
+ * Entries expire after the TTL sent by the server in the {@code MC-TTL} header, or after a default TTL for metadata.
+ * Expired entries with an {@code MC-ETag} are revalidated with {@code If-None-Match}, a {@code 304} response
+ * refreshes them without transferring the payload again. Responses with {@code MC-Cache-Policy: no} aren't cached.
+ * <p>
+ * On disk every entry is a {@link Mercury.MercuryReply} in the {@code metadata} directory of the cache, the fetch time
+ * is the last modified time of the file. Entries that can't be revalidated and expire immediately aren't written to
+ * disk, and only the fetch time is updated when the payload didn't change.
+ *
+ * @author Gianlu
+ */
+public class MetadataCache {
+    private static final Logger LOGGER = Logger.getLogger(MetadataCache.class);
+    private static final String[] CACHEABLE_PREFIXES = new String[]{"hm://metadata/", "hm://playlist/"};
+    private static final long DISK_MAX_AGE = TimeUnit.DAYS.toMillis(30);
+    private final Map<String, Entry> memory;
+    private final File dir;
+    private final int defaultTtl;
+
+    MetadataCache(@NotNull Configuration conf, @NotNull CacheManager.CacheConfiguration cacheConf) {
+        int maxEntries = Math.max(1, conf.metadataCacheMemoryEntries());
+        this.memory = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.defaultTtl = conf.metadataCacheDefaultTtl();
+
+        File dir = null;
+        if (cacheConf.cacheEnabled()) {
+            dir = new File(cacheConf.cacheDir(), "metadata");
+            if (!dir.exists() && !dir.mkdirs()) {
+                LOGGER.warn("Couldn't create metadata cache directory, caching in memory only: " + dir);
+                dir = null;
+            }
+        }
+
+        this.dir = dir;
+        if (dir != null) cleanUp();
+    }
+
+    private static boolean isCacheable(@NotNull String uri) {
+        for (String prefix : CACHEABLE_PREFIXES)
+            if (uri.startsWith(prefix))
+                return true;
+
+        return false;
+    }
+
+    static boolean isCacheable(@NotNull RawMercuryRequest request) {
+        return "GET".equals(request.header.getMethod()) && request.payload.length == 0 && isCacheable(request.header.getUri());
+    }
+
+    @Nullable
+    private static String userField(@NotNull MercuryClient.Response response, @NotNull String key) {
+        for (Mercury.UserField field : response.userFields)
+            if (field.getKey().equalsIgnoreCase(key))
+                return field.getValue().toStringUtf8();
+
+        return null;
+    }
+
+    @NotNull
+    private static String fileName(@NotNull String uri) {
+        try {
+            return Utils.bytesToHex(MessageDigest.getInstance("SHA-1").digest(uri.getBytes(StandardCharsets.UTF_8))).toLowerCase();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void cleanUp() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        int removed = 0;
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > DISK_MAX_AGE && file.delete())
+                removed++;
+        }
+
+        if (removed > 0) LOGGER.trace(String.format("Removed %d old metadata cache entries.", removed));
+    }
+
+    /**
+     * @return The cached entry for this URI, which may be expired, or {@code null}
+     */
+    @Nullable
+    Entry get(@NotNull String uri) {
+        Entry entry;
+        synchronized (memory) {
+            entry = memory.get(uri);
+        }
+
+        if (entry != null || dir == null) return entry;
+
+        entry = load(uri);
+        if (entry != null) {
+            synchronized (memory) {
+                memory.put(uri, entry);
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Stores a successful response, or refreshes {@code previous} if the response is a {@code 304}.
+     *
+     * @return The response to return to the caller
+     */
+    @NotNull
+    MercuryClient.Response put(@NotNull String uri, @Nullable Entry previous, @NotNull MercuryClient.Response response) {
+        if (response.statusCode == 304 && previous != null) {
+            Entry refreshed = new Entry(previous.payload, System.currentTimeMillis(), ttl(uri, response), previous.etag);
+            store(uri, previous, refreshed);
+            return refreshed.response(uri);
+        }
+
+        if (response.statusCode != 200) return response;
+
+        if ("no".equalsIgnoreCase(userField(response, "MC-Cache-Policy"))) {
+            remove(uri);
+            return response;
+        }
+
+        String etag = userField(response, "MC-ETag");
+        store(uri, previous, new Entry(response.payload, System.currentTimeMillis(), ttl(uri, response), etag));
+        return response;
+    }
+
+    private int ttl(@NotNull String uri, @NotNull MercuryClient.Response response) {
+        String ttl = userField(response, "MC-TTL");
+        if (ttl != null) {
+            try {
+                return Math.max(0, Integer.parseInt(ttl.trim()));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        return uri.startsWith("hm://metadata/") ? defaultTtl : 0;
+    }
+
+    private void remove(@NotNull String uri) {
+        synchronized (memory) {
+            memory.remove(uri);
+        }
+
+        if (dir != null) {
+            File file = new File(dir, fileName(uri));
+            if (file.exists() && !file.delete())
+                LOGGER.warn("Couldn't delete metadata cache entry: " + file);
+        }
+    }
+
+    private void store(@NotNull String uri, @Nullable Entry previous, @NotNull Entry entry) {
+        synchronized (memory) {
+            memory.put(uri, entry);
+        }
+
+        if (dir == null || entry.payload.size() != 1) return;
+        if (entry.ttl == 0 && entry.etag == null) return;
+
+        File file = new File(dir, fileName(uri));
+        if (previous != null && previous.sameAs(entry) && file.setLastModified(entry.fetchedAt))
+            return;
+
+        Mercury.MercuryReply.Builder reply = Mercury.MercuryReply.newBuilder()
+                .setStatusCode(200)
+                .setStatusMessage(uri)
+                .setTtl(entry.ttl)
+                .setBody(entry.payload.get(0));
+        if (entry.etag != null) reply.setEtag(ByteString.copyFromUtf8(entry.etag));
+
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(file.getName(), ".tmp", dir);
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                reply.build().writeTo(out);
+            }
+
+            if (!tmp.setLastModified(entry.fetchedAt))
+                LOGGER.warn("Couldn't set fetch time of metadata cache entry: " + tmp);
+
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOGGER.warn("Failed writing metadata cache entry: " + uri, ex);
+            if (tmp != null && tmp.exists() && !tmp.delete())
+                LOGGER.warn("Couldn't delete temporary file: " + tmp);
+        }
+    }
+
+    @Nullable
+    private Entry load(@NotNull String uri) {
+        File file = new File(dir, fileName(uri));
+        if (!file.exists()) return null;
+
+        Mercury.MercuryReply reply;
+        try (FileInputStream in = new FileInputStream(file)) {
+            reply = Mercury.MercuryReply.parseFrom(in);
+        } catch (IOException ex) {
+            LOGGER.warn("Failed reading metadata cache entry, removing it: " + uri, ex);
+            if (!file.delete()) LOGGER.warn("Couldn't delete metadata cache entry: " + file);
+            return null;
+        }
+
+        if (!uri.equals(reply.getStatusMessage())) return null;
+
+        return new Entry(Collections.singletonList(reply.getBody()), file.lastModified(), reply.getTtl(),
+                reply.hasEtag() ? reply.getEtag().toStringUtf8() : null);
+    }
+
+    public interface Configuration {
+        /**
+         * @return Whether metadata and playlists responses should be cached
+         */
+        boolean metadataCacheEnabled();
+
+        /**
+         * @return How many responses are kept in memory
+         */
+        int metadataCacheMemoryEntries();
+
+        /**
+         * @return For how many seconds metadata is considered fresh when the server doesn't send a TTL
+         */
+        int metadataCacheDefaultTtl();
+    }
+
+    static class Entry {
+        final List<ByteString> payload;
+        final long fetchedAt;
+        final int ttl;
+        final String etag;
+
+        Entry(@NotNull List<ByteString> payload, long fetchedAt, int ttl, @Nullable String etag) {
+            this.payload = payload;
+            this.fetchedAt = fetchedAt;
+            this.ttl = ttl;
+            this.etag = etag;
+        }
+
+        /**
+         * @return Whether the entry would be stored the same way on disk, except for the fetch time
+         */
+        boolean sameAs(@NotNull Entry other) {
+            return ttl == other.ttl && Objects.equals(etag, other.etag) && payload.equals(other.payload);
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() - fetchedAt < TimeUnit.SECONDS.toMillis(ttl);
+        }
+
+        @NotNull
+        MercuryClient.Response response(@NotNull String uri) {
+            return new MercuryClient.Response(uri, 200, payload);
+        }
+    }
+}
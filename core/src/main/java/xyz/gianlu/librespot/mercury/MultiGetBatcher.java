@@ -0,0 +1,213 @@
+package xyz.gianlu.librespot.mercury;
+
+import com.google.protobuf.ByteString;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.common.proto.Mercury;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collects the metadata GET requests issued within a short window and sends them as a single
+ * {@code vnd.spotify/mercury-mget-request}, the {@link Mercury.MercuryMultiGetReply} is then split back to the callers.
+ * <p>
+ * Requests are batched by type, {@code hm://metadata/4/track/<id>} requests are sent to {@code hm://metadata/4/tracks}.
+ * If a batch fails the requests are sent one by one. If the server rejects the batch, with a client error or with
+ * the wrong number of replies, that type isn't batched anymore. Transient failures leave batching enabled.
+ *
+ * @author Gianlu
+ */
+public class MultiGetBatcher {
+    private static final Logger LOGGER = Logger.getLogger(MultiGetBatcher.class);
+    private static final Pattern BATCHABLE = Pattern.compile("^(hm://metadata/\\d+/[a-z]+)/[0-9a-fA-F]+$");
+    private final MercuryClient client;
+    private final ScheduledExecutorService scheduler;
+    private final long window;
+    private final int maxSize;
+    private final Map<String, Batch> batches = new HashMap<>();
+    private final Set<String> unsupported = ConcurrentHashMap.newKeySet();
+
+    MultiGetBatcher(@NotNull MercuryClient client, @NotNull ScheduledExecutorService scheduler, @NotNull Configuration conf) {
+        this.client = client;
+        this.scheduler = scheduler;
+        this.window = conf.metadataBatchWindow();
+        this.maxSize = conf.metadataBatchSize();
+    }
+
+    @Nullable
+    private static String etag(@NotNull RawMercuryRequest request) {
+        for (Mercury.UserField field : request.header.getUserFieldsList())
+            if (field.getKey().equalsIgnoreCase("If-None-Match"))
+                return field.getValue().toStringUtf8();
+
+        return null;
+    }
+
+    @NotNull
+    private static List<Mercury.UserField> userFields(@NotNull Mercury.MercuryReply reply) {
+        List<Mercury.UserField> fields = new ArrayList<>(3);
+        if (reply.hasTtl())
+            fields.add(Mercury.UserField.newBuilder().setKey("MC-TTL").setValue(ByteString.copyFromUtf8(String.valueOf(reply.getTtl()))).build());
+        if (reply.hasEtag())
+            fields.add(Mercury.UserField.newBuilder().setKey("MC-ETag").setValue(reply.getEtag()).build());
+        if (reply.getCachePolicy() == Mercury.MercuryReply.CachePolicy.CACHE_NO)
+            fields.add(Mercury.UserField.newBuilder().setKey("MC-Cache-Policy").setValue(ByteString.copyFromUtf8("no")).build());
+        return fields;
+    }
+
+    /**
+     * @return Whether the status code means the endpoint doesn't accept the batch, rather than a transient failure
+     */
+    private static boolean isRejection(int statusCode) {
+        return statusCode >= 400 && statusCode < 500 && statusCode != 408 && statusCode != 429;
+    }
+
+    private static void complete(@NotNull CompletableFuture<MercuryClient.Response> future, @NotNull CompletableFuture<MercuryClient.Response> source) {
+        source.whenComplete((resp, ex) -> {
+            if (ex != null) future.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+            else future.complete(resp);
+        });
+    }
+
+    /**
+     * @return The future for the response, or {@code null} if the request can't be batched
+     */
+    @Nullable
+    CompletableFuture<MercuryClient.Response> send(@NotNull RawMercuryRequest request, long timeout) {
+        if (maxSize <= 1) return null;
+
+        Matcher matcher = BATCHABLE.matcher(request.header.getUri());
+        if (!matcher.matches()) return null;
+
+        String type = matcher.group(1);
+        if (unsupported.contains(type)) return null;
+
+        Item item = new Item(request, timeout);
+        Batch full = null;
+        synchronized (batches) {
+            Batch batch = batches.get(type);
+            if (batch == null) {
+                Batch created = batch = new Batch(type);
+                try {
+                    scheduler.schedule(() -> flush(created), window, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ex) {
+                    return null;
+                }
+
+                batches.put(type, batch);
+            }
+
+            batch.items.add(item);
+            if (batch.items.size() >= maxSize) full = batch;
+        }
+
+        if (full != null) flush(full);
+        return item.future;
+    }
+
+    private void flush(@NotNull Batch batch) {
+        synchronized (batches) {
+            if (batch.flushed) return;
+            batch.flushed = true;
+            batches.remove(batch.type, batch);
+        }
+
+        if (batch.items.size() == 1) {
+            Item item = batch.items.get(0);
+            complete(item.future, client.sendUncached(item.request, item.timeout));
+            return;
+        }
+
+        long timeout = Long.MAX_VALUE;
+        Mercury.MercuryRequest[] subs = new Mercury.MercuryRequest[batch.items.size()];
+        for (int i = 0; i < subs.length; i++) {
+            Item item = batch.items.get(i);
+            timeout = Math.min(timeout, item.timeout);
+
+            Mercury.MercuryRequest.Builder sub = Mercury.MercuryRequest.newBuilder().setUri(item.request.header.getUri());
+            String etag = etag(item.request);
+            if (etag != null) sub.setEtag(ByteString.copyFromUtf8(etag));
+            subs[i] = sub.build();
+        }
+
+        LOGGER.trace(String.format("Sending multiGet, uri: %ss, requests: %d", batch.type, subs.length));
+        client.sendUncached(MercuryRequests.multiGet(batch.type + "s", subs).request, timeout).whenComplete((resp, ex) -> {
+            if (ex != null) {
+                for (Item item : batch.items) item.future.completeExceptionally(ex);
+                return;
+            }
+
+            try {
+                if (resp.statusCode != 200)
+                    throw new BatchException("Status code: " + resp.statusCode, isRejection(resp.statusCode));
+
+                Mercury.MercuryMultiGetReply reply = Mercury.MercuryMultiGetReply.parseFrom(resp.codedInput());
+                if (reply.getReplyCount() != subs.length)
+                    throw new BatchException(String.format("Expected %d replies, got %d", subs.length, reply.getReplyCount()), true);
+
+                for (int i = 0; i < subs.length; i++) {
+                    Mercury.MercuryReply sub = reply.getReply(i);
+                    List<ByteString> payload = sub.hasBody() ? Collections.singletonList(sub.getBody()) : Collections.emptyList();
+                    batch.items.get(i).future.complete(new MercuryClient.Response(subs[i].getUri(), sub.getStatusCode(), payload, userFields(sub)));
+                }
+            } catch (IOException | BatchException e) {
+                if (e instanceof BatchException && ((BatchException) e).rejected) {
+                    LOGGER.warn(String.format("multiGet isn't supported for %s, sending requests one by one: %s", batch.type, e.getMessage()));
+                    unsupported.add(batch.type);
+                } else {
+                    LOGGER.debug(String.format("multiGet failed for %s, sending this batch one by one: %s", batch.type, e.getMessage()));
+                }
+
+                for (Item item : batch.items)
+                    complete(item.future, client.sendUncached(item.request, item.timeout));
+            }
+        });
+    }
+
+    public interface Configuration {
+        /**
+         * @return For how many milliseconds metadata requests are collected before sending them together
+         */
+        int metadataBatchWindow();
+
+        /**
+         * @return The maximum number of metadata requests sent together, {@code 1} disables batching
+         */
+        int metadataBatchSize();
+    }
+
+    private static class BatchException extends Exception {
+        private final boolean rejected;
+
+        BatchException(String message, boolean rejected) {
+            super(message);
+            this.rejected = rejected;
+        }
+    }
+
+    private static class Item {
+        private final RawMercuryRequest request;
+        private final long timeout;
+        private final CompletableFuture<MercuryClient.Response> future = new CompletableFuture<>();
+
+        Item(@NotNull RawMercuryRequest request, long timeout) {
+            this.request = request;
+            this.timeout = timeout;
+        }
+    }
+
+    private static class Batch {
+        private final String type;
+        private final List<Item> items = new ArrayList<>();
+        private boolean flushed = false;
+
+        Batch(@NotNull String type) {
+            this.type = type;
+        }
+    }
+}
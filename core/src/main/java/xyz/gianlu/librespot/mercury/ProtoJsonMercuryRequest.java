@@ -1,9 +1,12 @@
 package xyz.gianlu.librespot.mercury;
 
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
 import com.google.protobuf.AbstractMessageLite;
 import com.google.protobuf.Parser;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
 
 /**
  * @author Gianlu
@@ -17,7 +20,9 @@ public class ProtoJsonMercuryRequest<P extends AbstractMessageLite> extends Prot
     }
 
     public interface JsonConverter<P extends AbstractMessageLite> {
-        @NotNull
-        JsonElement convert(@NotNull P proto);
+        /**
+         * Writes the message as a single JSON value, only the fields in {@code projection} are written.
+         */
+        void write(@NotNull JsonWriter out, @NotNull P proto, @Nullable JsonProjection projection) throws IOException;
     }
 }
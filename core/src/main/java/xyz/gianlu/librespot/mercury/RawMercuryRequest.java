@@ -23,6 +23,11 @@ public class RawMercuryRequest {
         return RawMercuryRequest.newBuilder().setUri(uri).setMethod("SUB").build();
     }
 
+    @NotNull
+    public static RawMercuryRequest unsub(@NotNull String uri) {
+        return RawMercuryRequest.newBuilder().setUri(uri).setMethod("UNSUB").build();
+    }
+
     @NotNull
     public static RawMercuryRequest get(@NotNull String uri) {
         return RawMercuryRequest.newBuilder().setUri(uri).setMethod("GET").build();
@@ -33,6 +38,13 @@ public class RawMercuryRequest {
         return RawMercuryRequest.newBuilder().setUri(uri).setMethod("SEND").addPayloadPart(part).build();
     }
 
+    @NotNull
+    RawMercuryRequest withUserField(@NotNull String key, @NotNull String value) {
+        return new RawMercuryRequest(header.toBuilder()
+                .addUserFields(Mercury.UserField.newBuilder().setKey(key).setValue(ByteString.copyFromUtf8(value)))
+                .build(), payload);
+    }
+
     @NotNull
     public static Builder newBuilder() {
         return new Builder();
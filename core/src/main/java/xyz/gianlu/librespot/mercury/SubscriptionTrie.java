@@ -0,0 +1,88 @@
+package xyz.gianlu.librespot.mercury;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Routes the subscription events to the listeners subscribed to a prefix of their URI. Matching walks the URI once,
+ * so it doesn't depend on how many subscriptions there are.
+ *
+ * @author Gianlu
+ */
+final class SubscriptionTrie {
+    private final Node root = new Node(null, '\0');
+
+    SubscriptionTrie() {
+    }
+
+    synchronized void add(@NotNull String prefix, @NotNull SubListener listener) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            Node child = node.children.get(c);
+            if (child == null) {
+                child = new Node(node, c);
+                node.children.put(c, child);
+            }
+
+            node = child;
+        }
+
+        node.listeners.add(listener);
+    }
+
+    /**
+     * @return Whether there are other listeners subscribed to exactly this prefix
+     */
+    synchronized boolean remove(@NotNull String prefix, @NotNull SubListener listener) {
+        Node node = find(prefix);
+        if (node == null) return false;
+
+        node.listeners.remove(listener);
+        boolean others = !node.listeners.isEmpty();
+
+        while (node.parent != null && node.listeners.isEmpty() && node.children.isEmpty()) {
+            node.parent.children.remove(node.key);
+            node = node.parent;
+        }
+
+        return others;
+    }
+
+    /**
+     * @return The listeners subscribed to any prefix of {@code uri}, from the shortest prefix to the longest
+     */
+    @NotNull
+    synchronized List<SubListener> match(@NotNull String uri) {
+        List<SubListener> matched = new ArrayList<>(root.listeners);
+        Node node = root;
+        for (int i = 0; i < uri.length(); i++) {
+            node = node.children.get(uri.charAt(i));
+            if (node == null) break;
+            matched.addAll(node.listeners);
+        }
+
+        return matched;
+    }
+
+    private Node find(@NotNull String prefix) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++)
+            node = node.children.get(prefix.charAt(i));
+
+        return node;
+    }
+
+    private static class Node {
+        private final Node parent;
+        private final char key;
+        private final Map<Character, Node> children = new HashMap<>(4);
+        private final Set<SubListener> listeners = new LinkedHashSet<>(2);
+
+        Node(Node parent, char key) {
+            this.parent = parent;
+            this.key = key;
+        }
+    }
+}
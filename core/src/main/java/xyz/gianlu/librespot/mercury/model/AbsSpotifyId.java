@@ -0,0 +1,167 @@
+package xyz.gianlu.librespot.mercury.model;
+
+import com.google.protobuf.ByteString;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A 128 bit ID stored as two {@code long}s. The base62 and hex representations are computed once, when needed.
+ *
+ * @author Gianlu
+ */
+public abstract class AbsSpotifyId implements SpotifyId {
+    static final int BASE62_LENGTH = 22;
+    static final int HEX_LENGTH = 32;
+    private static final char[] BASE62_ALPHABET = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    private static final char[] HEX_ALPHABET = "0123456789ABCDEF".toCharArray();
+    private static final long MAX_HIGH_BEFORE_MULTIPLY = Long.divideUnsigned(-1L, 62);
+    private static final long LOW_32_MASK = 0xFFFFFFFFL;
+    public final long high;
+    public final long low;
+    private String base62;
+    private String hex;
+
+    AbsSpotifyId(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Parses the 22 base62 characters starting at {@code offset}.
+     */
+    AbsSpotifyId(@NotNull String base62, int offset) {
+        if (offset < 0 || base62.length() - offset < BASE62_LENGTH)
+            throw new IllegalArgumentException("Not a base62 ID: " + base62);
+
+        long high = 0;
+        long low = 0;
+        for (int i = offset; i < offset + BASE62_LENGTH; i++) {
+            int digit = base62Digit(base62.charAt(i));
+            if (digit == -1 || Long.compareUnsigned(high, MAX_HIGH_BEFORE_MULTIPLY) > 0)
+                throw new IllegalArgumentException("Not a base62 ID: " + base62);
+
+            long lowLow = (low & LOW_32_MASK) * 62 + digit;
+            long lowHigh = (low >>> 32) * 62 + (lowLow >>> 32);
+            low = (lowHigh << 32) | (lowLow & LOW_32_MASK);
+
+            long multiplied = high * 62;
+            high = multiplied + (lowHigh >>> 32);
+            if (Long.compareUnsigned(high, multiplied) < 0)
+                throw new IllegalArgumentException("Not a base62 ID: " + base62);
+        }
+
+        this.high = high;
+        this.low = low;
+    }
+
+    private static int base62Digit(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        else if (c >= 'a' && c <= 'z') return c - 'a' + 10;
+        else if (c >= 'A' && c <= 'Z') return c - 'A' + 36;
+        else return -1;
+    }
+
+    /**
+     * Parses 16 hex characters starting at {@code offset}.
+     */
+    static long parseHex(@NotNull String str, int offset) {
+        if (str.length() != HEX_LENGTH)
+            throw new IllegalArgumentException("Not a hex ID: " + str);
+
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            int digit = Character.digit(str.charAt(i), 16);
+            if (digit == -1) throw new IllegalArgumentException("Not a hex ID: " + str);
+            value = (value << 4) | digit;
+        }
+
+        return value;
+    }
+
+    static long gidHalf(@NotNull ByteString gid, int offset) {
+        if (gid.size() != 16)
+            throw new IllegalArgumentException("Not a valid GID, length: " + gid.size());
+
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++)
+            value = (value << 8) | (gid.byteAt(i) & 0xFF);
+
+        return value;
+    }
+
+    @NotNull
+    public final String toBase62() {
+        if (base62 == null) {
+            char[] chars = new char[BASE62_LENGTH];
+            long high = this.high;
+            long low = this.low;
+            for (int i = BASE62_LENGTH - 1; i >= 0; i--) {
+                long remainder = (high >>> 32) % 62;
+                long limb0 = (high >>> 32) / 62;
+
+                long current = (remainder << 32) | (high & LOW_32_MASK);
+                long limb1 = current / 62;
+                remainder = current % 62;
+
+                current = (remainder << 32) | (low >>> 32);
+                long limb2 = current / 62;
+                remainder = current % 62;
+
+                current = (remainder << 32) | (low & LOW_32_MASK);
+                long limb3 = current / 62;
+                remainder = current % 62;
+
+                high = (limb0 << 32) | limb1;
+                low = (limb2 << 32) | limb3;
+                chars[i] = BASE62_ALPHABET[(int) remainder];
+            }
+
+            base62 = new String(chars);
+        }
+
+        return base62;
+    }
+
+    @NotNull
+    public final String toHex() {
+        if (hex == null) {
+            char[] chars = new char[HEX_LENGTH];
+            for (int i = 0; i < 16; i++) {
+                chars[i] = HEX_ALPHABET[(int) (high >>> (60 - i * 4)) & 0x0F];
+                chars[i + 16] = HEX_ALPHABET[(int) (low >>> (60 - i * 4)) & 0x0F];
+            }
+
+            hex = new String(chars);
+        }
+
+        return hex;
+    }
+
+    @NotNull
+    public final byte[] getGid() {
+        byte[] gid = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            gid[i] = (byte) (high >>> (56 - i * 8));
+            gid[i + 8] = (byte) (low >>> (56 - i * 8));
+        }
+
+        return gid;
+    }
+
+    @Override
+    public final boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        AbsSpotifyId id = (AbsSpotifyId) o;
+        return high == id.high && low == id.low;
+    }
+
+    @Override
+    public final int hashCode() {
+        return 31 * Long.hashCode(high) + Long.hashCode(low);
+    }
+
+    @Override
+    public String toString() {
+        return toSpotifyUri();
+    }
+}
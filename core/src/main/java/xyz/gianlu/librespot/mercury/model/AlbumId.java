@@ -1,52 +1,52 @@
 package xyz.gianlu.librespot.mercury.model;
 
-import io.seruco.encoding.base62.Base62;
+import com.google.protobuf.ByteString;
 import org.jetbrains.annotations.NotNull;
-import xyz.gianlu.librespot.common.Utils;
-
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * @author Gianlu
  */
-public final class AlbumId implements SpotifyId {
-    private static final Pattern PATTERN = Pattern.compile("spotify:album:(.{22})");
-    private static final Base62 BASE62 = Base62.createInstanceWithInvertedCharacterSet();
-    private final String hexId;
+public final class AlbumId extends AbsSpotifyId {
+    private static final String URI_PREFIX = "spotify:album:";
+
+    private AlbumId(long high, long low) {
+        super(high, low);
+    }
 
-    private AlbumId(@NotNull String hex) {
-        this.hexId = hex;
+    private AlbumId(@NotNull String base62, int offset) {
+        super(base62, offset);
     }
 
     @NotNull
     public static AlbumId fromUri(@NotNull String uri) {
-        Matcher matcher = PATTERN.matcher(uri);
-        if (matcher.find()) {
-            String id = matcher.group(1);
-            return new AlbumId(Utils.bytesToHex(BASE62.decode(id.getBytes())));
-        } else {
-            throw new IllegalArgumentException("Not a Spotify album ID: " + uri);
-        }
+        int index = uri.indexOf(URI_PREFIX);
+        if (index == -1) throw new IllegalArgumentException("Not a Spotify album ID: " + uri);
+        return new AlbumId(uri, index + URI_PREFIX.length());
     }
 
     @NotNull
     public static AlbumId fromBase62(@NotNull String base62) {
-        return new AlbumId(Utils.bytesToHex(BASE62.decode(base62.getBytes())));
+        if (base62.length() != BASE62_LENGTH) throw new IllegalArgumentException("Not a base62 ID: " + base62);
+        return new AlbumId(base62, 0);
     }
 
     @NotNull
     public static AlbumId fromHex(@NotNull String hex) {
-        return new AlbumId(hex);
+        return new AlbumId(parseHex(hex, 0), parseHex(hex, 16));
+    }
+
+    @NotNull
+    public static AlbumId fromGid(@NotNull ByteString gid) {
+        return new AlbumId(gidHalf(gid, 0), gidHalf(gid, 8));
     }
 
     @Override
     public @NotNull String toMercuryUri() {
-        return "hm://metadata/4/album/" + hexId;
+        return "hm://metadata/4/album/" + toHex();
     }
 
     @Override
     public @NotNull String toSpotifyUri() {
-        return "spotify:album:" + new String(BASE62.encode(Utils.hexToBytes(hexId)));
+        return URI_PREFIX + toBase62();
     }
 }
@@ -1,52 +1,52 @@
 package xyz.gianlu.librespot.mercury.model;
 
-import io.seruco.encoding.base62.Base62;
+import com.google.protobuf.ByteString;
 import org.jetbrains.annotations.NotNull;
-import xyz.gianlu.librespot.common.Utils;
-
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * @author Gianlu
  */
-public final class ArtistId implements SpotifyId {
-    private static final Pattern PATTERN = Pattern.compile("spotify:artist:(.{22})");
-    private static final Base62 BASE62 = Base62.createInstanceWithInvertedCharacterSet();
-    private final String hexId;
+public final class ArtistId extends AbsSpotifyId {
+    private static final String URI_PREFIX = "spotify:artist:";
+
+    private ArtistId(long high, long low) {
+        super(high, low);
+    }
 
-    private ArtistId(@NotNull String hex) {
-        this.hexId = hex;
+    private ArtistId(@NotNull String base62, int offset) {
+        super(base62, offset);
     }
 
     @NotNull
     public static ArtistId fromUri(@NotNull String uri) {
-        Matcher matcher = PATTERN.matcher(uri);
-        if (matcher.find()) {
-            String id = matcher.group(1);
-            return new ArtistId(Utils.bytesToHex(BASE62.decode(id.getBytes())));
-        } else {
-            throw new IllegalArgumentException("Not a Spotify artist ID: " + uri);
-        }
+        int index = uri.indexOf(URI_PREFIX);
+        if (index == -1) throw new IllegalArgumentException("Not a Spotify artist ID: " + uri);
+        return new ArtistId(uri, index + URI_PREFIX.length());
     }
 
     @NotNull
     public static ArtistId fromBase62(@NotNull String base62) {
-        return new ArtistId(Utils.bytesToHex(BASE62.decode(base62.getBytes())));
+        if (base62.length() != BASE62_LENGTH) throw new IllegalArgumentException("Not a base62 ID: " + base62);
+        return new ArtistId(base62, 0);
     }
 
     @NotNull
     public static ArtistId fromHex(@NotNull String hex) {
-        return new ArtistId(hex);
+        return new ArtistId(parseHex(hex, 0), parseHex(hex, 16));
+    }
+
+    @NotNull
+    public static ArtistId fromGid(@NotNull ByteString gid) {
+        return new ArtistId(gidHalf(gid, 0), gidHalf(gid, 8));
     }
 
     @Override
     public @NotNull String toMercuryUri() {
-        return "hm://metadata/4/artist/" + hexId;
+        return "hm://metadata/4/artist/" + toHex();
     }
 
     @Override
     public @NotNull String toSpotifyUri() {
-        return "spotify:artist:" + new String(BASE62.encode(Utils.hexToBytes(hexId)));
+        return URI_PREFIX + toBase62();
     }
 }
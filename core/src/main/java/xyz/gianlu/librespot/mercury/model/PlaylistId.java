@@ -28,6 +28,19 @@ public final class PlaylistId implements SpotifyId {
         }
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PlaylistId that = (PlaylistId) o;
+        return username.equals(that.username) && playlistId.equals(that.playlistId);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * username.hashCode() + playlistId.hashCode();
+    }
+
     @Override
     public @NotNull String toMercuryUri() {
         return String.format("hm://playlist/user/%s/playlist/%s", username, playlistId);
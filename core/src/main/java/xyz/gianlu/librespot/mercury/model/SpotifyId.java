@@ -2,41 +2,49 @@ package xyz.gianlu.librespot.mercury.model;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-
 /**
  * @author Gianlu
  */
 public interface SpotifyId {
-    String STATIC_FROM_URI = "fromUri";
-    String STATIC_FROM_BASE62 = "fromBase62";
-    String STATIC_FROM_HEX = "fromHex";
 
     @NotNull
-    static <I extends SpotifyId> I fromBase62(Class<I> clazz, String base62) throws SpotifyIdParsingException {
-        return callReflection(clazz, STATIC_FROM_BASE62, base62);
-    }
+    static <I extends SpotifyId> I fromBase62(@NotNull Class<I> clazz, @NotNull String base62) throws SpotifyIdParsingException {
+        try {
+            if (clazz == TrackId.class) return clazz.cast(TrackId.fromBase62(base62));
+            else if (clazz == AlbumId.class) return clazz.cast(AlbumId.fromBase62(base62));
+            else if (clazz == ArtistId.class) return clazz.cast(ArtistId.fromBase62(base62));
+        } catch (IllegalArgumentException ex) {
+            throw new SpotifyIdParsingException(ex);
+        }
 
-    @NotNull
-    static <I extends SpotifyId> I fromHex(Class<I> clazz, String hex) throws SpotifyIdParsingException {
-        return callReflection(clazz, STATIC_FROM_HEX, hex);
+        throw new SpotifyIdParsingException(clazz.getSimpleName() + " can't be parsed from base62");
     }
 
     @NotNull
-    static <I extends SpotifyId> I fromUri(Class<I> clazz, String uri) throws SpotifyIdParsingException {
-        return callReflection(clazz, STATIC_FROM_URI, uri);
+    static <I extends SpotifyId> I fromHex(@NotNull Class<I> clazz, @NotNull String hex) throws SpotifyIdParsingException {
+        try {
+            if (clazz == TrackId.class) return clazz.cast(TrackId.fromHex(hex));
+            else if (clazz == AlbumId.class) return clazz.cast(AlbumId.fromHex(hex));
+            else if (clazz == ArtistId.class) return clazz.cast(ArtistId.fromHex(hex));
+        } catch (IllegalArgumentException ex) {
+            throw new SpotifyIdParsingException(ex);
+        }
+
+        throw new SpotifyIdParsingException(clazz.getSimpleName() + " can't be parsed from hex");
     }
 
-    @SuppressWarnings("unchecked")
     @NotNull
-    static <I extends SpotifyId> I callReflection(@NotNull Class<I> clazz, @NotNull String name, @NotNull String arg) throws SpotifyIdParsingException {
+    static <I extends SpotifyId> I fromUri(@NotNull Class<I> clazz, @NotNull String uri) throws SpotifyIdParsingException {
         try {
-            Method method = clazz.getDeclaredMethod(name, String.class);
-            return (I) method.invoke(null, arg);
-        } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException ex) {
+            if (clazz == TrackId.class) return clazz.cast(TrackId.fromUri(uri));
+            else if (clazz == AlbumId.class) return clazz.cast(AlbumId.fromUri(uri));
+            else if (clazz == ArtistId.class) return clazz.cast(ArtistId.fromUri(uri));
+            else if (clazz == PlaylistId.class) return clazz.cast(PlaylistId.fromUri(uri));
+        } catch (IllegalArgumentException ex) {
             throw new SpotifyIdParsingException(ex);
         }
+
+        throw new SpotifyIdParsingException(clazz.getSimpleName() + " can't be parsed from an URI");
     }
 
     @NotNull String toMercuryUri();
@@ -44,6 +52,10 @@ public interface SpotifyId {
     @NotNull String toSpotifyUri();
 
     class SpotifyIdParsingException extends Exception {
+        SpotifyIdParsingException(String message) {
+            super(message);
+        }
+
         SpotifyIdParsingException(Throwable cause) {
             super(cause);
         }
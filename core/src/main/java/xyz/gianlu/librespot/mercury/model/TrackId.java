@@ -1,45 +1,50 @@
 package xyz.gianlu.librespot.mercury.model;
 
-import io.seruco.encoding.base62.Base62;
+import com.google.protobuf.ByteString;
 import org.jetbrains.annotations.NotNull;
-import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.common.proto.Spirc;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * @author Gianlu
  */
-public final class TrackId implements SpotifyId {
-    private static final Pattern PATTERN = Pattern.compile("spotify:track:(.{22})");
-    private static final Base62 BASE62 = Base62.createInstanceWithInvertedCharacterSet();
-    private final String hexId;
+public final class TrackId extends AbsSpotifyId {
+    private static final String URI_PREFIX = "spotify:track:";
+
+    private TrackId(long high, long low) {
+        super(high, low);
+    }
 
-    private TrackId(@NotNull String hex) {
-        this.hexId = hex;
+    private TrackId(@NotNull String base62, int offset) {
+        super(base62, offset);
     }
 
     @NotNull
     public static TrackId fromUri(@NotNull String uri) {
-        Matcher matcher = PATTERN.matcher(uri);
-        if (matcher.find()) {
-            String id = matcher.group(1);
-            return new TrackId(Utils.bytesToHex(BASE62.decode(id.getBytes())));
-        } else {
-            throw new IllegalArgumentException("Not a Spotify track ID: " + uri);
-        }
+        int index = uri.indexOf(URI_PREFIX);
+        if (index == -1) throw new IllegalArgumentException("Not a Spotify track ID: " + uri);
+        return new TrackId(uri, index + URI_PREFIX.length());
     }
 
     @NotNull
     public static TrackId fromBase62(@NotNull String base62) {
-        return new TrackId(Utils.bytesToHex(BASE62.decode(base62.getBytes())));
+        if (base62.length() != BASE62_LENGTH) throw new IllegalArgumentException("Not a base62 ID: " + base62);
+        return new TrackId(base62, 0);
+    }
+
+    @NotNull
+    public static TrackId fromHex(@NotNull String hex) {
+        return new TrackId(parseHex(hex, 0), parseHex(hex, 16));
+    }
+
+    @NotNull
+    public static TrackId fromGid(@NotNull ByteString gid) {
+        return new TrackId(gidHalf(gid, 0), gidHalf(gid, 8));
     }
 
     @NotNull
     public static TrackId fromTrackRef(@NotNull Spirc.TrackRef ref) {
         if (ref.hasGid()) {
-            return new TrackId(Utils.bytesToHex(ref.getGid()));
+            return fromGid(ref.getGid());
         } else if (ref.hasUri()) {
             return fromUri(ref.getUri());
         } else {
@@ -47,22 +52,13 @@ public final class TrackId implements SpotifyId {
         }
     }
 
-    @NotNull
-    public static TrackId fromHex(@NotNull String hex) {
-        return new TrackId(hex);
-    }
-
     @Override
     public @NotNull String toMercuryUri() {
-        return "hm://metadata/4/track/" + hexId;
+        return "hm://metadata/4/track/" + toHex();
     }
 
     @Override
     public @NotNull String toSpotifyUri() {
-        return "spotify:track:" + new String(BASE62.encode(Utils.hexToBytes(hexId)));
-    }
-
-    public byte[] getGid() {
-        return Utils.hexToBytes(hexId);
+        return URI_PREFIX + toBase62();
     }
 }
@@ -1,43 +1,115 @@
 package xyz.gianlu.librespot.player;
 
-import xyz.gianlu.librespot.common.Utils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author Gianlu
  */
 public class AudioDecrypt {
     private static final byte[] AUDIO_AES_IV = new byte[]{(byte) 0x72, (byte) 0xe0, (byte) 0x67, (byte) 0xfb, (byte) 0xdd, (byte) 0xcb, (byte) 0xcf, (byte) 0x77, (byte) 0xeb, (byte) 0xe8, (byte) 0xbc, (byte) 0x64, (byte) 0x3f, (byte) 0x63, (byte) 0x0d, (byte) 0x93};
-    private final static BigInteger IV_INT = new BigInteger(1, AUDIO_AES_IV);
+    static final int RANGE_SIZE = 0x4000;
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/CTR/NoPadding");
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
     private final SecretKeySpec secretKeySpec;
 
     public AudioDecrypt(byte[] key) {
         this.secretKeySpec = new SecretKeySpec(key, "AES");
     }
 
-    public synchronized void decryptChunk(int chunkIndex, byte[] in, byte[] out) throws IOException {
-        int pos = ChannelManager.CHUNK_SIZE * chunkIndex;
+    @NotNull
+    private static byte[] ivForBlock(long block) {
+        byte[] iv = AUDIO_AES_IV.clone();
+        long carry = block;
+        for (int i = iv.length - 1; i >= 0 && carry != 0; i--) {
+            long sum = (iv[i] & 0xFF) + (carry & 0xFF);
+            iv[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
 
-        if (pos % 16 != 0) throw new IllegalArgumentException("Position not multiple of 16: " + pos);
+        return iv;
+    }
 
-        try {
-            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(Utils.toByteArray(IV_INT.add(BigInteger.valueOf(pos / 16)))));
-
-            for (int i = 0; i < in.length; i += 4096) {
-                int endBytes = Math.min(i + 4096, in.length);
-                int count = cipher.doFinal(in, 0, endBytes, out, 0);
-                if (count != endBytes)
-                    throw new IOException(String.format("Could process all data, actual: %d, expected: %d", count, endBytes));
+    /**
+     * Decrypts a single chunk. Independent ranges of the chunk are decrypted in parallel, each range starts at a
+     * multiple of {@link #RANGE_SIZE} and is reported to the listener as soon as it's been decrypted.
+     */
+    public void decryptChunk(int chunkIndex, byte[] in, byte[] out, @Nullable RangeListener listener) throws IOException {
+        if (in.length > out.length)
+            throw new IllegalArgumentException(String.format("Output buffer too small, in: %d, out: %d", in.length, out.length));
+
+        DecryptRange task = new DecryptRange((long) ChannelManager.CHUNK_SIZE * chunkIndex, in, out, 0, in.length, listener);
+        if (in.length <= RANGE_SIZE) task.compute();
+        else POOL.invoke(task);
+
+        if (task.exception != null) throw task.exception;
+    }
+
+    public interface RangeListener {
+        /**
+         * Called on the decrypting thread once {@code length} bytes starting at {@code offset} have been decrypted
+         */
+        void rangeDecrypted(int offset, int length);
+    }
+
+    private class DecryptRange extends RecursiveAction {
+        private final long pos;
+        private final byte[] in;
+        private final byte[] out;
+        private final int offset;
+        private final int length;
+        private final RangeListener listener;
+        private IOException exception;
+
+        DecryptRange(long pos, byte[] in, byte[] out, int offset, int length, @Nullable RangeListener listener) {
+            this.pos = pos;
+            this.in = in;
+            this.out = out;
+            this.offset = offset;
+            this.length = length;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void compute() {
+            if (length > RANGE_SIZE) {
+                int half = (length / RANGE_SIZE + 1) / 2 * RANGE_SIZE;
+                DecryptRange first = new DecryptRange(pos, in, out, offset, half, listener);
+                DecryptRange second = new DecryptRange(pos, in, out, offset + half, length - half, listener);
+                invokeAll(first, second);
+
+                if (first.exception != null) exception = first.exception;
+                else if (second.exception != null) exception = second.exception;
+                return;
+            }
+
+            try {
+                Cipher cipher = CIPHERS.get();
+                cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(ivForBlock((pos + offset) / 16)));
+                int count = cipher.doFinal(in, offset, length, out, offset);
+                if (count != length)
+                    exception = new IOException(String.format("Couldn't process all data, actual: %d, expected: %d", count, length));
+                else if (listener != null)
+                    listener.rangeDecrypted(offset, length);
+            } catch (GeneralSecurityException ex) {
+                exception = new IOException(ex);
             }
-        } catch (GeneralSecurityException ex) {
-            throw new IOException(ex);
         }
     }
 }
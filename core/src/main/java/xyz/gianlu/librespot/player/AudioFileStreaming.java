@@ -12,7 +12,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import static xyz.gianlu.librespot.player.ChannelManager.CHUNK_SIZE;
 
@@ -21,6 +20,8 @@ import static xyz.gianlu.librespot.player.ChannelManager.CHUNK_SIZE;
  */
 public class AudioFileStreaming implements AudioFile {
     private static final Logger LOGGER = Logger.getLogger(AudioFileStreaming.class);
+    private final CacheManager cacheManager;
+    private final CacheStats stats;
     private final CacheManager.Handler cacheHandler;
     private final ByteString fileId;
     private final byte[] key;
@@ -28,10 +29,13 @@ public class AudioFileStreaming implements AudioFile {
     private final ExecutorService executorService = Executors.newCachedThreadPool();
     private int chunks = -1;
     private ChunksBuffer chunksBuffer;
+    private long[] requestedAt;
 
     AudioFileStreaming(@NotNull Session session, @NotNull CacheManager cacheManager, @NotNull Metadata.AudioFile file, byte[] key) {
         this.session = session;
         this.fileId = file.getFileId();
+        this.cacheManager = cacheManager;
+        this.stats = cacheManager.stats();
         this.cacheHandler = cacheManager.handler(fileId);
         this.key = key;
     }
@@ -48,8 +52,12 @@ public class AudioFileStreaming implements AudioFile {
     }
 
     private void requestChunk(@NotNull ByteString fileId, int index, @NotNull AudioFile file) throws IOException {
-        if (cacheHandler != null && cacheHandler.has(index)) cacheHandler.requestChunk(index, file);
-        else session.channel().requestChunk(fileId, index, file);
+        if (cacheHandler != null && cacheHandler.has(index)) {
+            cacheHandler.requestChunk(index, file);
+        } else {
+            if (file == this) requestedAt[index] = System.nanoTime();
+            session.channel().requestChunk(fileId, index, file);
+        }
     }
 
     @NotNull
@@ -62,13 +70,18 @@ public class AudioFileStreaming implements AudioFile {
     }
 
     void open() throws IOException {
+        boolean cached = cacheHandler != null && cacheHandler.hasHeaders();
         AudioFileFetch fetch = requestHeaders();
+        if (!cached) stats.fileMisses.increment();
+        else if (cacheHandler.isComplete()) stats.fileHits.increment();
+        else stats.filePartialHits.increment();
 
         int size = fetch.getSize();
         LOGGER.trace("Track size: " + size);
         chunks = fetch.getChunks();
         LOGGER.trace(String.format("Track has %d chunks.", chunks));
 
+        requestedAt = new long[chunks];
         chunksBuffer = new ChunksBuffer(size, chunks);
         requestChunk(0);
         chunksBuffer.waitFor(0);
@@ -91,8 +104,12 @@ public class AudioFileStreaming implements AudioFile {
 
     @Override
     public void writeChunk(byte[] buffer, int chunkIndex, boolean cached) throws IOException {
-        if (!cached && cacheHandler != null)
-            cacheHandler.write(buffer, chunkIndex);
+        if (!cached) {
+            stats.networkChunks.increment();
+            stats.networkBytes.add(buffer.length);
+            if (requestedAt[chunkIndex] != 0) stats.networkChunkLatency.recordSince(requestedAt[chunkIndex]);
+            if (cacheHandler != null) cacheHandler.write(buffer, chunkIndex);
+        }
 
         chunksBuffer.writeChunk(buffer, chunkIndex);
         LOGGER.trace(String.format("Chunk %d/%d completed, cached: %b, fileId: %s", chunkIndex, chunks, cached, getFileIdHex()));
@@ -109,6 +126,7 @@ public class AudioFileStreaming implements AudioFile {
     @Override
     public void cacheFailedChunk(int index, @NotNull AudioFile file) {
         try {
+            if (file == this) requestedAt[index] = System.nanoTime();
             session.channel().requestChunk(fileId, index, file);
         } catch (IOException ex) {
             LOGGER.fatal(String.format("Failed requesting chunk, index: %d", index), ex);
@@ -130,24 +148,35 @@ public class AudioFileStreaming implements AudioFile {
         executorService.shutdown();
         if (chunksBuffer != null)
             chunksBuffer.close();
+
+        if (cacheHandler != null)
+            cacheHandler.close();
     }
 
+    /**
+     * Holds the decrypted chunks. A chunk becomes readable range by range while it's being decrypted: the decrypted
+     * ranges are tracked as a bitmask and readers can consume the contiguous decrypted prefix.
+     */
     private class ChunksBuffer implements Closeable {
         private final int size;
         private final byte[][] buffer;
         private final boolean[] available;
+        private final int[] decryptedRanges;
         private final boolean[] requested;
         private final AudioDecrypt audioDecrypt;
-        private final AtomicInteger waitForChunk = new AtomicInteger(-1);
+        private final Object waitLock = new Object();
         private InternalStream internalStream;
+        private boolean released = false;
 
         ChunksBuffer(int size, int chunks) {
             this.size = size;
             this.buffer = new byte[chunks][CHUNK_SIZE];
             this.buffer[chunks - 1] = new byte[size % CHUNK_SIZE];
             this.available = new boolean[chunks];
+            this.decryptedRanges = new int[chunks];
             this.requested = new boolean[chunks];
             this.audioDecrypt = new AudioDecrypt(key);
+            cacheManager.reserveMemory(size);
         }
 
         void writeChunk(@NotNull byte[] chunk, int chunkIndex) throws IOException {
@@ -156,24 +185,52 @@ public class AudioFileStreaming implements AudioFile {
             if (chunk.length != buffer[chunkIndex].length)
                 throw new IllegalArgumentException(String.format("Buffer size mismatch, required: %d, received: %d, index: %d", buffer[chunkIndex].length, chunk.length, chunkIndex));
 
-            audioDecrypt.decryptChunk(chunkIndex, chunk, buffer[chunkIndex]);
-            available[chunkIndex] = true;
-
-            if (chunkIndex == waitForChunk.get()) {
-                synchronized (waitForChunk) {
-                    waitForChunk.set(-1);
-                    waitForChunk.notifyAll();
+            audioDecrypt.decryptChunk(chunkIndex, chunk, buffer[chunkIndex], (offset, length) -> {
+                synchronized (waitLock) {
+                    decryptedRanges[chunkIndex] |= 1 << (offset / AudioDecrypt.RANGE_SIZE);
+                    waitLock.notifyAll();
                 }
+            });
+
+            synchronized (waitLock) {
+                available[chunkIndex] = true;
+                waitLock.notifyAll();
             }
         }
 
+        /**
+         * @return The number of leading bytes of the chunk that have been decrypted. The lock must be held.
+         */
+        private int readable(int chunkIndex) {
+            if (available[chunkIndex]) return buffer[chunkIndex].length;
+
+            int ranges = Integer.numberOfTrailingZeros(~decryptedRanges[chunkIndex]);
+            return Math.min(buffer[chunkIndex].length, ranges * AudioDecrypt.RANGE_SIZE);
+        }
+
+        /**
+         * Waits for the chunk to be available, returns immediately if it already is. Chunks served from memory
+         * may be written before this is called.
+         */
         private void waitFor(int chunkIndex) throws IOException {
-            if (internalStream != null && internalStream.closed) return;
+            waitFor(chunkIndex, buffer[chunkIndex].length);
+        }
 
-            synchronized (waitForChunk) {
+        /**
+         * Waits for at least {@code bytes} leading bytes of the chunk to be decrypted
+         *
+         * @return The number of leading bytes of the chunk that can be read
+         */
+        private int waitFor(int chunkIndex, int bytes) throws IOException {
+            synchronized (waitLock) {
                 try {
-                    waitForChunk.set(chunkIndex);
-                    waitForChunk.wait();
+                    int readable;
+                    while ((readable = readable(chunkIndex)) < bytes) {
+                        if (internalStream != null && internalStream.closed) return readable;
+                        waitLock.wait();
+                    }
+
+                    return readable;
                 } catch (InterruptedException ex) {
                     throw new IOException(ex);
                 }
@@ -190,6 +247,12 @@ public class AudioFileStreaming implements AudioFile {
         public void close() {
             if (internalStream != null)
                 internalStream.close();
+
+            synchronized (waitLock) {
+                if (!released) cacheManager.releaseMemory(size);
+                released = true;
+                waitLock.notifyAll();
+            }
         }
 
         private class InternalStream extends InputStream {
@@ -234,12 +297,12 @@ public class AudioFileStreaming implements AudioFile {
                 pos += k;
 
                 int chunk = pos / CHUNK_SIZE;
-                checkAvailability(chunk, false);
+                if (chunk < chunks) checkAvailability(chunk);
 
                 return k;
             }
 
-            private void checkAvailability(int chunk, boolean wait) throws IOException {
+            private void checkAvailability(int chunk) {
                 if (!requested[chunk]) {
                     requestChunkFromStream(chunk);
                     requested[chunk] = true;
@@ -249,9 +312,19 @@ public class AudioFileStreaming implements AudioFile {
                     requestChunkFromStream(chunk + 1);
                     requested[chunk + 1] = true;
                 }
+            }
 
-                if (wait && !available[chunk])
-                    waitFor(chunk);
+            /**
+             * Requests the chunk if needed and waits for the byte at {@code chunkOff} to be decrypted
+             *
+             * @return The number of leading bytes of the chunk that can be read
+             */
+            private int awaitReadable(int chunk, int chunkOff) throws IOException {
+                checkAvailability(chunk);
+
+                int readable = waitFor(chunk, chunkOff + 1);
+                if (readable <= chunkOff) throw new IOException("Stream is closed!");
+                return readable;
             }
 
             @Override
@@ -272,9 +345,9 @@ public class AudioFileStreaming implements AudioFile {
                     int chunk = pos / CHUNK_SIZE;
                     int chunkOff = pos % CHUNK_SIZE;
 
-                    checkAvailability(chunk, true);
+                    int readable = awaitReadable(chunk, chunkOff);
 
-                    int copy = Math.min(buffer[chunk].length - chunkOff, len - i);
+                    int copy = Math.min(readable - chunkOff, len - i);
                     System.arraycopy(buffer[chunk], chunkOff, b, off + i, copy);
                     i += copy;
                     pos += copy;
@@ -292,7 +365,7 @@ public class AudioFileStreaming implements AudioFile {
                     return -1;
 
                 int chunk = pos / CHUNK_SIZE;
-                checkAvailability(chunk, true);
+                awaitReadable(chunk, pos % CHUNK_SIZE);
 
                 return buffer[chunk][pos++ % CHUNK_SIZE] & 0xff;
             }
@@ -1,21 +1,21 @@
 package xyz.gianlu.librespot.player;
 
+import com.google.protobuf.ByteString;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import xyz.gianlu.librespot.common.Utils;
+import xyz.gianlu.librespot.common.proto.Metadata;
 import xyz.gianlu.librespot.core.PacketsManager;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.crypto.Packet;
-import xyz.gianlu.librespot.common.proto.Metadata;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Gianlu
@@ -23,36 +23,121 @@ import java.util.concurrent.atomic.AtomicReference;
 public class AudioKeyManager extends PacketsManager {
     private static final byte[] ZERO_SHORT = new byte[]{0, 0};
     private static final Logger LOGGER = Logger.getLogger(AudioKeyManager.class);
+    private static final long KEY_TIMEOUT = TimeUnit.SECONDS.toMillis(3);
+    private static final long RETRY_DELAY = 250;
+    private static final int MAX_ATTEMPTS = 3;
     private final AtomicInteger seqHolder = new AtomicInteger(0);
-    private final Map<Integer, Callback> callbacks = Collections.synchronizedMap(new HashMap<>());
+    private final Map<Integer, KeyRequest> callbacks = new ConcurrentHashMap<>();
+    private final Map<ByteString, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final AudioKeyStore store;
 
-    public AudioKeyManager(@NotNull Session session) {
+    public AudioKeyManager(@NotNull Session session, @NotNull CacheManager.CacheConfiguration conf) {
         super(session);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "audio-key-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        AudioKeyStore store = null;
+        if (conf.cacheEnabled()) {
+            try {
+                store = new AudioKeyStore(new File(conf.cacheDir(), ".keys"), session.apWelcome().getCanonicalUsername());
+            } catch (IOException ex) {
+                LOGGER.warn("Couldn't open audio keys store, keys won't be stored.", ex);
+            }
+        }
+
+        this.store = store;
     }
 
     byte[] getAudioKey(@NotNull Metadata.Track track, @NotNull Metadata.AudioFile file) throws IOException {
-        int seq;
-        synchronized (seqHolder) {
-            seq = seqHolder.getAndIncrement();
+        try {
+            return getAudioKeyAsync(track.getGid(), file.getFileId()).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            else throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Gets the key from the store or requests it. Identical requests share the same future, requests that time out or
+     * can't be sent are retried up to {@link #MAX_ATTEMPTS} times before completing with an {@link AesKeyException}.
+     * An error answered by the server fails the request immediately.
+     */
+    @NotNull
+    public CompletableFuture<byte[]> getAudioKeyAsync(@NotNull ByteString gid, @NotNull ByteString fileId) {
+        if (store != null) {
+            byte[] key = store.get(gid, fileId);
+            if (key != null) return CompletableFuture.completedFuture(key);
+        }
+
+        ByteString id = gid.concat(fileId);
+        KeyRequest[] created = new KeyRequest[1];
+        CompletableFuture<byte[]> future = inFlight.computeIfAbsent(id, k -> (created[0] = new KeyRequest(gid, fileId)).future);
+        if (created[0] != null) {
+            future.whenComplete((key, ex) -> {
+                inFlight.remove(id, future);
+                if (key != null && store != null) store.put(gid, fileId, key);
+            });
+
+            send(created[0]);
+        }
+
+        return future;
+    }
+
+    private void send(@NotNull KeyRequest request) {
+        if (request.future.isDone()) return;
+
+        int seq = seqHolder.getAndIncrement();
+        request.attempts++;
+        callbacks.put(seq, request);
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            request.fileId.writeTo(out);
+            request.gid.writeTo(out);
+            out.write(Utils.toByteArray(seq));
+            out.write(ZERO_SHORT);
+
+            session.send(Packet.Type.RequestKey, out.toByteArray());
+        } catch (IOException | RuntimeException ex) {
+            callbacks.remove(seq);
+            retryOrFail(request, ex);
+            return;
         }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        file.getFileId().writeTo(out);
-        track.getGid().writeTo(out);
-        out.write(Utils.toByteArray(seq));
-        out.write(ZERO_SHORT);
+        try {
+            scheduler.schedule(() -> {
+                if (callbacks.remove(seq, request))
+                    retryOrFail(request, new AesKeyException(String.format("Timed out waiting for key, seq: %d", seq)));
+            }, KEY_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            callbacks.remove(seq);
+            request.future.completeExceptionally(new AesKeyException("Manager is closed!"));
+        }
+    }
 
-        session.send(Packet.Type.RequestKey, out.toByteArray());
+    private void retryOrFail(@NotNull KeyRequest request, @NotNull Exception ex) {
+        if (request.attempts < MAX_ATTEMPTS && !request.future.isDone()) {
+            LOGGER.warn(String.format("Failed getting audio key, retrying. {attempt: %d, gid: %s, fileId: %s}", request.attempts,
+                    Utils.bytesToHex(request.gid), Utils.bytesToHex(request.fileId)), ex);
 
-        AtomicReference<byte[]> ref = new AtomicReference<>();
-        callbacks.put(seq, key -> {
-            synchronized (ref) {
-                ref.set(key);
-                ref.notifyAll();
+            try {
+                scheduler.schedule(() -> send(request), RETRY_DELAY * request.attempts, TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException ignored) {
             }
-        });
+        }
 
-        return Utils.wait(ref);
+        if (ex instanceof AesKeyException) request.future.completeExceptionally(ex);
+        else request.future.completeExceptionally(new AesKeyException(ex));
     }
 
     @Override
@@ -60,8 +145,8 @@ public class AudioKeyManager extends PacketsManager {
         ByteBuffer payload = ByteBuffer.wrap(packet.payload);
         int seq = payload.getInt();
 
-        Callback callback = callbacks.remove(seq);
-        if (callback == null) {
+        KeyRequest request = callbacks.remove(seq);
+        if (request == null) {
             LOGGER.warn("Couldn't find callback for seq: " + seq);
             return;
         }
@@ -69,12 +154,31 @@ public class AudioKeyManager extends PacketsManager {
         if (packet.is(Packet.Type.AesKey)) {
             byte[] key = new byte[16];
             payload.get(key);
-            callback.key(key);
+            request.future.complete(key);
         } else if (packet.is(Packet.Type.AesKeyError)) {
             short code = payload.getShort();
-            LOGGER.fatal(String.format("Audio key error, code: %d, length: %d", code, packet.payload.length));
+            request.future.completeExceptionally(new AesKeyException(String.format("Audio key error, code: %d", code)));
         } else {
             LOGGER.warn(String.format("Couldn't handle packet, cmd: %s, length: %d", packet.type(), packet.payload.length));
+            retryOrFail(request, new AesKeyException("Unexpected packet: " + packet.type()));
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        scheduler.shutdownNow();
+
+        AesKeyException ex = new AesKeyException("Manager is closed!");
+        for (CompletableFuture<byte[]> future : inFlight.values()) future.completeExceptionally(ex);
+        callbacks.clear();
+
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed closing audio keys store.", e);
+            }
         }
     }
 
@@ -83,7 +187,25 @@ public class AudioKeyManager extends PacketsManager {
         LOGGER.fatal("Failed handling packet!", ex);
     }
 
-    private interface Callback {
-        void key(byte[] key);
+    public static class AesKeyException extends IOException {
+        AesKeyException(String message) {
+            super(message);
+        }
+
+        AesKeyException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    private static class KeyRequest {
+        private final ByteString gid;
+        private final ByteString fileId;
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        private volatile int attempts = 0;
+
+        KeyRequest(@NotNull ByteString gid, @NotNull ByteString fileId) {
+            this.gid = gid;
+            this.fileId = fileId;
+        }
     }
 }
@@ -0,0 +1,193 @@
+package xyz.gianlu.librespot.player;
+
+import com.google.protobuf.ByteString;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.crypto.PBKDF2;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the audio keys alongside the cache, so that cached tracks can be played without waiting for the access point.
+ * <p>
+ * Every record is {@code gid (16) | file id (20) | nonce (12) | encrypted key and tag (32)}. Keys are encrypted with
+ * AES-GCM, the gid and file id are authenticated too. The encryption key is derived from the identity of this machine
+ * and from the username, the keys can't be read by copying the cache somewhere else.
+ * <p>
+ * The file is append-only while running. On load it's rewritten without the records that can't be decrypted anymore
+ * (because the machine or the user changed) and without the ones that were stored again later.
+ *
+ * @author Gianlu
+ */
+class AudioKeyStore implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(AudioKeyStore.class);
+    private static final int GID_LENGTH = 16;
+    private static final int FILE_ID_LENGTH = 20;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final int KEY_LENGTH = 16;
+    private static final int RECORD_SIZE = GID_LENGTH + FILE_ID_LENGTH + NONCE_LENGTH + KEY_LENGTH + TAG_LENGTH;
+    private static final String[] MACHINE_ID_FILES = new String[]{"/etc/machine-id", "/var/lib/dbus/machine-id"};
+    private final Map<ByteString, byte[]> records = new HashMap<>();
+    private final SecretKeySpec secretKey;
+    private final SecureRandom random = new SecureRandom();
+    private final FileOutputStream out;
+
+    AudioKeyStore(@NotNull File file, @NotNull String username) throws IOException {
+        this.secretKey = new SecretKeySpec(PBKDF2.HmacSHA1(machineSecret(), username.getBytes(StandardCharsets.UTF_8), 0x100, 16), "AES");
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs())
+            throw new IOException("Couldn't create directory: " + parent);
+
+        if (file.exists()) load(file);
+        this.out = new FileOutputStream(file, true);
+    }
+
+    @NotNull
+    private static byte[] machineSecret() throws IOException {
+        ByteArrayOutputStream secret = new ByteArrayOutputStream();
+        for (String path : MACHINE_ID_FILES) {
+            File file = new File(path);
+            if (file.canRead()) {
+                secret.write(Files.readAllBytes(file.toPath()));
+                break;
+            }
+        }
+
+        if (secret.size() == 0) {
+            secret.write(InetAddress.getLocalHost().getHostName().getBytes(StandardCharsets.UTF_8));
+
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                byte[] address = interfaces.nextElement().getHardwareAddress();
+                if (address != null) secret.write(address);
+            }
+        }
+
+        secret.write(System.getProperty("user.name", "").getBytes(StandardCharsets.UTF_8));
+
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(secret.toByteArray());
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @NotNull
+    private static ByteString id(@NotNull ByteString gid, @NotNull ByteString fileId) {
+        return gid.concat(fileId);
+    }
+
+    private void load(@NotNull File file) throws IOException {
+        long count = file.length() / RECORD_SIZE;
+        boolean truncated = file.length() % RECORD_SIZE != 0;
+        if (truncated) LOGGER.warn("Audio keys file has a truncated record, dropping it.");
+
+        int undecryptable = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            for (long i = 0; i < count; i++) {
+                byte[] record = new byte[RECORD_SIZE];
+                in.readFully(record);
+
+                try {
+                    decrypt(record);
+                    records.put(ByteString.copyFrom(record, 0, GID_LENGTH + FILE_ID_LENGTH), record);
+                } catch (GeneralSecurityException ex) {
+                    undecryptable++;
+                }
+            }
+        }
+
+        if (undecryptable > 0)
+            LOGGER.warn(String.format("Dropping %d stored audio keys that couldn't be decrypted.", undecryptable));
+
+        if (truncated || records.size() < count) rewrite(file);
+        LOGGER.trace(String.format("Loaded %d stored audio keys.", records.size()));
+    }
+
+    /**
+     * Replaces the file with only the loaded records
+     */
+    private void rewrite(@NotNull File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream tmpOut = new FileOutputStream(tmp)) {
+            BufferedOutputStream buffered = new BufferedOutputStream(tmpOut);
+            for (byte[] record : records.values()) buffered.write(record);
+            buffered.flush();
+            tmpOut.getFD().sync();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @NotNull
+    private byte[] decrypt(@NotNull byte[] record) throws GeneralSecurityException {
+        int idLength = GID_LENGTH + FILE_ID_LENGTH;
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(TAG_LENGTH * 8, record, idLength, NONCE_LENGTH));
+        cipher.updateAAD(record, 0, idLength);
+        return cipher.doFinal(record, idLength + NONCE_LENGTH, KEY_LENGTH + TAG_LENGTH);
+    }
+
+    @Nullable
+    synchronized byte[] get(@NotNull ByteString gid, @NotNull ByteString fileId) {
+        if (gid.size() != GID_LENGTH || fileId.size() != FILE_ID_LENGTH) return null;
+
+        ByteString id = id(gid, fileId);
+        byte[] record = records.get(id);
+        if (record == null) return null;
+
+        try {
+            return decrypt(record);
+        } catch (GeneralSecurityException ex) {
+            LOGGER.warn("Couldn't decrypt stored audio key, ignoring it.", ex);
+            records.remove(id);
+            return null;
+        }
+    }
+
+    synchronized void put(@NotNull ByteString gid, @NotNull ByteString fileId, @NotNull byte[] key) {
+        if (gid.size() != GID_LENGTH || fileId.size() != FILE_ID_LENGTH || key.length != KEY_LENGTH) return;
+
+        ByteString id = id(gid, fileId);
+        byte[] record = new byte[RECORD_SIZE];
+        id.copyTo(record, 0);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        System.arraycopy(nonce, 0, record, id.size(), NONCE_LENGTH);
+
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(record, 0, id.size());
+            cipher.doFinal(key, 0, key.length, record, id.size() + NONCE_LENGTH);
+
+            out.write(record);
+            out.flush();
+            records.put(id, record);
+        } catch (GeneralSecurityException | IOException ex) {
+            LOGGER.warn("Failed storing audio key.", ex);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
@@ -8,10 +8,23 @@ import xyz.gianlu.librespot.common.Utils;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
 import static xyz.gianlu.librespot.player.ChannelManager.CHUNK_SIZE;
 
@@ -19,46 +32,150 @@ import static xyz.gianlu.librespot.player.ChannelManager.CHUNK_SIZE;
 /**
  * @author Gianlu
  */
-public class CacheManager {
+public class CacheManager implements Closeable {
     static final byte BYTE_CREATED_AT = 0b1111111;
     private static final Logger LOGGER = Logger.getLogger(CacheManager.class);
     private static final long CLEAN_UP_THRESHOLD = TimeUnit.DAYS.toMillis(7);
+    private static final long GROUP_COMMIT_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    private static final int COMPACT_THRESHOLD = 4096;
+    private static final int TABLE_VERSION = 5;
+    private static final int JOURNAL_VERSION = 6;
+    private static final int JOURNAL_HEADER_SIZE = 12;
+    private static final long EVICTION_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    private static final long EVICTION_GRACE = TimeUnit.MINUTES.toMillis(10);
+    private static final long FREQUENCY_WEIGHT = TimeUnit.HOURS.toMillis(12);
+    private static final int MAX_EVICTIONS_PER_RUN = 64;
+    private static final int MAX_OPEN_HANDLERS = 32;
+    private static final int WRITE_QUEUE_SIZE = 64;
+    private static final int WRITE_BATCH_SIZE = 16;
+    private static final long SCRUB_INTERVAL = TimeUnit.HOURS.toMillis(6);
     private final File cacheDir;
     private final boolean enabled;
     private final Map<String, Handler> loadedHandlers;
     private final ControlTable controlTable;
+    private final Writer writer;
+    private final ChunkCache memory;
+    private final SegmentStore segments;
+    private final Scrubber scrubber;
     private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final CacheStats stats = new CacheStats();
+    /**
+     * Held by the writer from the moment a batch is written until it's recorded in the control table
+     */
+    private final ReentrantLock writeHandoff = new ReentrantLock();
+    private volatile boolean closed = false;
 
     public CacheManager(@NotNull CacheConfiguration conf) throws IOException {
         this.enabled = conf.cacheEnabled();
         if (enabled) {
-            this.loadedHandlers = new HashMap<>();
+            this.loadedHandlers = new LinkedHashMap<>(16, 0.75f, true);
+            this.memory = new ChunkCache(conf.cacheMemoryMb() * 1024L * 1024L);
             this.cacheDir = conf.cacheDir();
             if (!cacheDir.exists() && !cacheDir.mkdir())
                 throw new IllegalStateException("Cannot create cache dir!");
 
-            this.controlTable = new ControlTable(new File(cacheDir, ".table"));
-            if (conf.doCleanUp()) controlTable.cleanOldTracks();
+            if (conf.cacheSegmentedStore() && conf.cacheShared()) {
+                LOGGER.warn("The segmented store cannot be shared, storing one file per track.");
+                this.segments = null;
+            } else if (conf.cacheSegmentedStore())
+                this.segments = new SegmentStore(new File(cacheDir, "segments"), this::isStored, writeHandoff);
+            else
+                this.segments = null;
+
+            this.controlTable = new ControlTable(new File(cacheDir, ".table"), new File(cacheDir, ".journal"),
+                    conf.cacheShared() ? new File(cacheDir, ".lock") : null, conf.cacheSyncPolicy(), conf.cacheQuotaMb() * 1024L * 1024L);
+            if (conf.doCleanUp()) controlTable.scheduleCleanUp();
+
+            Thread thread = new Thread(this.writer = new Writer(), "cache-writer");
+            thread.setDaemon(true);
+            thread.start();
+
+            if (conf.cacheScrubBandwidthKbps() > 0)
+                this.scrubber = new Scrubber(conf.cacheScrubBandwidthKbps() * 1024L / 8);
+            else
+                this.scrubber = null;
         } else {
             this.cacheDir = null;
             this.loadedHandlers = null;
             this.controlTable = null;
+            this.writer = null;
+            this.memory = null;
+            this.segments = null;
+            this.scrubber = null;
         }
     }
 
+    /**
+     * @return A referenced handler for the given file, must be closed when no longer needed
+     */
     @Nullable
     Handler handler(@NotNull ByteString fileId) {
         if (!enabled) return null;
+        return handler(Utils.bytesToHex(fileId));
+    }
 
-        String hexId = Utils.bytesToHex(fileId);
-        return loadedHandlers.computeIfAbsent(hexId, id -> {
-            try {
-                return new Handler(id);
-            } catch (IOException ex) {
-                LOGGER.fatal("Failed creating cache handler for " + hexId, ex);
-                return null;
+    @NotNull
+    private Handler handler(@NotNull String fileId) {
+        Handler handler;
+        synchronized (loadedHandlers) {
+            handler = loadedHandlers.computeIfAbsent(fileId, Handler::new);
+            handler.refs++;
+        }
+
+        trimHandlers();
+        return handler;
+    }
+
+    @NotNull
+    public CacheStats stats() {
+        return stats;
+    }
+
+    private boolean isStored(@NotNull String fileId, int index) {
+        return controlTable.has(fileId, index);
+    }
+
+    /**
+     * Reserves memory for a playback buffer from the budget of the in-memory chunk cache
+     */
+    void reserveMemory(long bytes) {
+        if (enabled) memory.reserve(bytes);
+    }
+
+    void releaseMemory(long bytes) {
+        if (enabled) memory.release(bytes);
+    }
+
+    /**
+     * Closes the least recently used idle handlers until at most {@link #MAX_OPEN_HANDLERS} are registered.
+     */
+    private void trimHandlers() {
+        synchronized (loadedHandlers) {
+            if (loadedHandlers.size() <= MAX_OPEN_HANDLERS) return;
+
+            Iterator<Handler> iterator = loadedHandlers.values().iterator();
+            while (iterator.hasNext() && loadedHandlers.size() > MAX_OPEN_HANDLERS) {
+                Handler handler = iterator.next();
+                if (handler.refs == 0) {
+                    iterator.remove();
+                    handler.registered = false;
+                    handler.closeFile();
+                }
             }
-        });
+        }
+    }
+
+    /**
+     * @return The eviction score, lower scores are evicted first
+     */
+    private static long score(long lastAccess, int hits) {
+        return lastAccess + Math.min(hits, 32) * FREQUENCY_WEIGHT;
+    }
+
+    private static int checksum(byte[] buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer, 0, buffer.length);
+        return (int) crc.getValue();
     }
 
     public interface CacheConfiguration {
@@ -68,105 +185,1135 @@ public class CacheManager {
         File cacheDir();
 
         boolean doCleanUp();
+
+        @NotNull
+        SyncPolicy cacheSyncPolicy();
+
+        /**
+         * @return The maximum size of the cache in megabytes, {@code 0} means unlimited
+         */
+        int cacheQuotaMb();
+
+        /**
+         * @return The I/O rate of the background cache verification in kilobits per second, {@code 0} disables it
+         */
+        int cacheScrubBandwidthKbps();
+
+        /**
+         * @return The memory budget in megabytes shared by the in-memory chunk cache and the playback buffers
+         */
+        int cacheMemoryMb();
+
+        /**
+         * @return Whether chunks should be stored in a few large segment files instead of one file per track
+         */
+        boolean cacheSegmentedStore();
+
+        /**
+         * @return Whether the cache directory is shared with other processes
+         */
+        boolean cacheShared();
     }
 
-    private class ControlTable {
-        private final List<CacheEntry> entries = new ArrayList<>();
-        private final RandomAccessFile file;
+    @Override
+    public void close() throws IOException {
+        if (!enabled) return;
 
-        private ControlTable(@NotNull File controlFile) throws IOException {
-            if (!controlFile.exists()) {
-                if (controlFile.createNewFile()) file = new RandomAccessFile(controlFile, "rwd");
-                else throw new IOException("Failed creating cache control file!");
-                save();
-            } else {
-                file = new RandomAccessFile(controlFile, "rwd");
-                file.seek(0);
-                int count = file.readInt();
-                for (int i = 0; i < count; i++)
-                    entries.add(new CacheEntry(file));
+        closed = true;
+        if (scrubber != null) scrubber.stop();
+
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(10, TimeUnit.SECONDS))
+                LOGGER.warn("Cache reads didn't complete in time!");
+        } catch (InterruptedException ex) {
+            LOGGER.warn("Interrupted while waiting for cache reads!", ex);
+            Thread.currentThread().interrupt();
+        }
+
+        writer.close();
+        controlTable.close();
+        if (segments != null) segments.close();
+        synchronized (loadedHandlers) {
+            for (Handler handler : loadedHandlers.values()) {
+                handler.registered = false;
+                handler.closeFile();
             }
+
+            loadedHandlers.clear();
         }
+    }
 
-        private void cleanOldTracks() {
-            Iterator<CacheEntry> iterator = entries.iterator();
-            while (iterator.hasNext()) {
-                CacheEntry entry = iterator.next();
-                if (System.currentTimeMillis() - entry.getCreatedAtMillis() > CLEAN_UP_THRESHOLD) {
-                    entry.deleteFile();
-                    iterator.remove();
+    private interface EntryVisitor {
+        void visit(int offset, long lastAccess, int hits);
+    }
+
+    public enum SyncPolicy {
+        /**
+         * Every journal record is flushed and synced to disk immediately
+         */
+        ALWAYS,
+        /**
+         * Journal records are grouped and synced to disk periodically
+         */
+        PERIODIC,
+        /**
+         * Journal records are grouped and flushed periodically, syncing is left to the OS
+         */
+        NEVER
+    }
+
+    /**
+     * The control table is kept in memory and indexed by file ID. Its on-disk representation is a snapshot ({@code .table})
+     * plus an append-only journal ({@code .journal}) that records every change made since the snapshot was written.
+     * The journal is periodically compacted into a new snapshot.
+     * <p>
+     * The snapshot is memory-mapped and contains a hash index of its entries, so that entries are decoded only when
+     * they're first accessed. Opening the table doesn't depend on the number of entries.
+     * <p>
+     * The cache directory can be shared by multiple processes. In that case the journal is shared too: every
+     * process appends its records while holding a lock on {@code .lock} and applies the records of the others.
+     * A compaction starts a new journal generation which makes the other processes reload the table.
+     * <p>
+     * If a quota is set, entries are evicted in the background when it's exceeded. Eviction is done in two steps:
+     * first the least valuable entries are trimmed down to their first chunks, then they are removed completely.
+     * <p>
+     * Every cached chunk has a CRC32 checksum which is verified when the chunk is read back. Chunks that fail the
+     * verification are invalidated individually and downloaded again.
+     */
+    private class ControlTable implements Closeable {
+        private static final byte RECORD_ENTRY = 1;
+        private static final byte RECORD_CHUNK = 2;
+        private static final byte RECORD_REMOVE = 3;
+        private static final byte RECORD_ACCESS = 4;
+        private static final byte RECORD_TRIM = 5;
+        private static final byte RECORD_INVALIDATE = 6;
+        private final Map<String, CacheEntry> entries = new HashMap<>();
+        private final Set<String> removed = new HashSet<>();
+        private final File tableFile;
+        private final File journalFile;
+        private final SyncPolicy syncPolicy;
+        private final long quota;
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final FileChannel lockChannel;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private final DataOutputStream pendingOut = new DataOutputStream(pending);
+        private FileLock lock = null;
+        private FileOutputStream journalFileOut;
+        private DataOutputStream journal;
+        private long generation = 0;
+        private long journalPosition = 0;
+        private int journalRecords = 0;
+        private boolean dirty = false;
+        private long usedBytes = 0;
+        private MappedIndex mapped = null;
+
+        private ControlTable(@NotNull File tableFile, @NotNull File journalFile, @Nullable File lockFile, @NotNull SyncPolicy syncPolicy, long quota) throws IOException {
+            this.tableFile = tableFile;
+            this.journalFile = journalFile;
+            this.syncPolicy = syncPolicy;
+            this.quota = quota;
+            this.lockChannel = lockFile == null ? null : FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            FileLock acquired = lock(false);
+            try {
+                boolean upgrade = loadSnapshot();
+                if (journalFile.exists() && replayJournal() && !upgrade) {
+                    if (lockChannel == null) openJournal();
+                } else {
+                    compact();
                 }
+            } finally {
+                unlock(acquired);
             }
 
-            safeSave();
+            scheduler.scheduleWithFixedDelay(this::groupCommit, GROUP_COMMIT_INTERVAL, GROUP_COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+            if (quota > 0)
+                scheduler.scheduleWithFixedDelay(this::evict, 0, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
         }
 
-        private void save() throws IOException {
-            file.seek(0);
-            file.writeInt(entries.size());
-            for (CacheEntry entry : entries)
-                entry.writeTo(file);
+        /**
+         * Locks the shared cache directory, does nothing if the directory isn't shared or the lock is already held.
+         *
+         * @return The acquired lock, to be passed to {@link #unlock(FileLock)}
+         */
+        @Nullable
+        private FileLock lock(boolean shared) throws IOException {
+            if (lockChannel == null || lock != null) return null;
+            return lock = lockChannel.lock(0, Long.MAX_VALUE, shared);
         }
 
-        boolean has(@NotNull String fileId, int chunk) {
-            for (CacheEntry entry : entries)
-                if (fileId.equals(entry.hexId))
-                    return entry.has(chunk);
+        private void unlock(@Nullable FileLock acquired) throws IOException {
+            if (acquired == null) return;
 
-            return false;
+            lock = null;
+            acquired.release();
         }
 
-        boolean hasHeaders(@NotNull String fileId) {
-            for (CacheEntry entry : entries)
-                if (fileId.equals(entry.hexId))
-                    return true;
+        /**
+         * Every compaction writes the snapshot to a new file named after the journal generation, so that a mapped
+         * snapshot is never replaced.
+         */
+        @NotNull
+        private File snapshotFile(long generation) {
+            return new File(tableFile.getPath() + "." + Long.toHexString(generation));
+        }
 
-            return false;
+        /**
+         * @return The snapshot of the current journal generation. If the journal can't tell, the most recent
+         * snapshot, or the snapshot written by older versions.
+         */
+        @NotNull
+        private File currentSnapshot() {
+            if (journalFile.exists()) {
+                try (DataInputStream in = new DataInputStream(new FileInputStream(journalFile))) {
+                    if (in.readInt() == JOURNAL_VERSION) {
+                        File snapshot = snapshotFile(in.readLong());
+                        if (snapshot.exists()) return snapshot;
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+
+            File latest = tableFile;
+            for (File snapshot : snapshots()) {
+                if (!latest.exists() || snapshot.lastModified() > latest.lastModified())
+                    latest = snapshot;
+            }
+
+            return latest;
+        }
+
+        /**
+         * @return All the snapshot files in the cache directory, including the one written by older versions
+         */
+        @NotNull
+        private File[] snapshots() {
+            String prefix = tableFile.getName() + ".";
+            File[] files = tableFile.getParentFile().listFiles((dir, name) -> name.equals(tableFile.getName()) || name.startsWith(prefix));
+            return files == null ? new File[0] : files;
+        }
+
+        /**
+         * Deletes the snapshots of the previous generations. Snapshots still mapped may fail to be deleted on some
+         * platforms, they're retried after the next compaction.
+         */
+        private void deleteStaleSnapshots(@NotNull File current) {
+            for (File snapshot : snapshots()) {
+                if (!snapshot.equals(current) && !snapshot.delete())
+                    LOGGER.debug("Couldn't delete old cache snapshot: " + snapshot);
+            }
+        }
+
+        /**
+         * Loads the snapshot discarding the current state
+         *
+         * @return Whether the snapshot is in an older format and must be rewritten
+         */
+        private boolean loadSnapshot() throws IOException {
+            entries.clear();
+            removed.clear();
+            mapped = null;
+            usedBytes = 0;
+
+            File snapshot = currentSnapshot();
+            if (!snapshot.exists()) return false;
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+                int version = 1;
+                int count = in.readInt();
+                if (count < 0) {
+                    version = -count;
+                    count = in.readInt();
+                }
+
+                if (version == TABLE_VERSION) {
+                    mapped = new MappedIndex(snapshot);
+                    usedBytes = mapped.usedBytes;
+                    return false;
+                }
+
+                for (int i = 0; i < count; i++) {
+                    CacheEntry entry = new CacheEntry(in, version);
+                    entries.put(entry.hexId, entry);
+                    usedBytes += entry.cachedBytes();
+                }
+
+                return true;
+            }
+        }
+
+        /**
+         * @return Whether the journal has been replayed completely and can be appended to
+         */
+        private boolean replayJournal() throws IOException {
+            journalRecords = 0;
+            journalPosition = 0;
+
+            byte[] data = Files.readAllBytes(journalFile.toPath());
+            if (data.length < 4) return false;
+
+            int version = ByteBuffer.wrap(data).getInt();
+            if (version < 3 || version > JOURNAL_VERSION) {
+                LOGGER.warn(String.format("Discarding cache journal with unknown version %d.", version));
+                return false;
+            }
+
+            int headerSize = 4;
+            if (version >= 6) {
+                if (data.length < JOURNAL_HEADER_SIZE) return false;
+                generation = ByteBuffer.wrap(data).getLong(4);
+                headerSize = JOURNAL_HEADER_SIZE;
+            }
+
+            journalPosition = headerSize + applyRecords(data, headerSize, version);
+            if (journalPosition < data.length) {
+                LOGGER.warn(String.format("Cache journal is truncated, replayed %d records.", journalRecords));
+                return false;
+            }
+
+            LOGGER.trace(String.format("Replayed %d cache journal records.", journalRecords));
+            return version == JOURNAL_VERSION;
+        }
+
+        /**
+         * Applies the complete records contained in {@code data} starting at {@code offset}
+         *
+         * @return The number of bytes consumed
+         */
+        private int applyRecords(@NotNull byte[] data, int offset, int version) throws IOException {
+            ByteArrayInputStream bytes = new ByteArrayInputStream(data, offset, data.length - offset);
+            DataInputStream in = new DataInputStream(bytes);
+
+            int consumed = 0;
+            while (bytes.available() > 0) {
+                try {
+                    applyRecord(in, version);
+                } catch (EOFException ex) {
+                    break;
+                }
+
+                consumed = data.length - offset - bytes.available();
+                journalRecords++;
+            }
+
+            return consumed;
+        }
+
+        private void applyRecord(@NotNull DataInput in, int version) throws IOException {
+            CacheEntry current;
+            byte type = in.readByte();
+            switch (type) {
+                case RECORD_ENTRY:
+                    CacheEntry entry = new CacheEntry(in, version);
+                    current = removeEntry(entry.hexId);
+                    if (current != null) usedBytes -= current.cachedBytes();
+                    entries.put(entry.hexId, entry);
+                    break;
+                case RECORD_CHUNK:
+                    String chunkId = readId(in);
+                    int index = in.readInt();
+                    int checksum = version >= 4 ? in.readInt() : 0;
+                    current = get(chunkId);
+                    if (current != null) {
+                        if (!current.has(index)) usedBytes += CHUNK_SIZE;
+                        if (version >= 4) current.writtenChunk(index, checksum);
+                        else current.writtenChunk(index);
+                    }
+                    break;
+                case RECORD_REMOVE:
+                    current = removeEntry(readId(in));
+                    if (current != null) usedBytes -= current.cachedBytes();
+                    break;
+                case RECORD_ACCESS:
+                    String accessId = readId(in);
+                    long lastAccess = in.readLong();
+                    int hits = in.readInt();
+                    current = get(accessId);
+                    if (current != null) current.accessed(lastAccess, hits);
+                    break;
+                case RECORD_TRIM:
+                    String trimId = readId(in);
+                    int keep = in.readInt();
+                    current = get(trimId);
+                    if (current != null) {
+                        usedBytes -= current.cachedBytes();
+                        current.trimmedTo(keep);
+                        usedBytes += current.cachedBytes();
+                    }
+                    break;
+                case RECORD_INVALIDATE:
+                    String invalidId = readId(in);
+                    int invalid = in.readInt();
+                    current = get(invalidId);
+                    if (current != null && current.has(invalid)) {
+                        usedBytes -= CHUNK_SIZE;
+                        current.invalidate(invalid);
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown journal record: " + type);
+            }
+        }
+
+        /**
+         * Applies the records appended by other processes since the last call. If the journal has been compacted
+         * in the meantime, the whole table is reloaded. The lock must be held.
+         */
+        private void tail() throws IOException {
+            if (lockChannel == null || !journalFile.exists()) return;
+
+            byte[] data;
+            try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+                while (header.hasRemaining() && channel.read(header, header.position()) != -1) ;
+
+                if (header.hasRemaining() || header.getInt(0) != JOURNAL_VERSION || header.getLong(4) != generation) {
+                    reload();
+                    return;
+                }
+
+                long size = channel.size();
+                if (size <= journalPosition) return;
+
+                ByteBuffer buffer = ByteBuffer.allocate((int) (size - journalPosition));
+                while (buffer.hasRemaining() && channel.read(buffer, journalPosition + buffer.position()) != -1) ;
+                data = buffer.array();
+            }
+
+            journalPosition += applyRecords(data, 0, JOURNAL_VERSION);
+        }
+
+        /**
+         * Reloads the table after another process compacted it. Records not yet written to the journal are applied again.
+         */
+        private void reload() throws IOException {
+            LOGGER.trace("Cache table has been compacted by another process, reloading.");
+            loadSnapshot();
+            if (journalFile.exists()) replayJournal();
+            else journalPosition = 0;
+
+            int records = journalRecords;
+            applyRecords(pending.toByteArray(), 0, JOURNAL_VERSION);
+            journalRecords = records;
         }
 
-        private void safeSave() {
+        private void refresh() {
             try {
-                save();
+                FileLock acquired = lock(true);
+                try {
+                    tail();
+                } finally {
+                    unlock(acquired);
+                }
             } catch (IOException ex) {
-                LOGGER.warn("Failed saving cache control file!", ex);
+                LOGGER.warn("Failed reading shared cache journal!", ex);
             }
         }
 
-        void writtenChunk(@NotNull String fileId, int index) {
-            for (CacheEntry entry : entries) {
-                if (fileId.equals(entry.hexId))
-                    entry.writtenChunk(index);
+        /**
+         * @return The entry with the given ID, decoding it from the snapshot if it hasn't been accessed yet
+         */
+        @Nullable
+        private CacheEntry get(@NotNull String fileId) {
+            CacheEntry entry = entries.get(fileId);
+            if (entry != null || mapped == null || removed.contains(fileId)) return entry;
+
+            try {
+                entry = mapped.load(fileId);
+            } catch (IOException ex) {
+                LOGGER.warn("Failed decoding cache entry: " + fileId, ex);
+                return null;
             }
 
-            safeSave();
+            if (entry != null) entries.put(fileId, entry);
+            return entry;
         }
 
-        void writeHeaders(@NotNull String fileId, byte[] headersId, byte[][] headersData, short chunksCount) {
-            entries.add(new CacheEntry(fileId, headersId, headersData, chunksCount));
+        @Nullable
+        private CacheEntry removeEntry(@NotNull String fileId) {
+            CacheEntry entry = get(fileId);
+            entries.remove(fileId);
+            if (mapped != null) removed.add(fileId);
+            return entry;
         }
 
-        public void remove(@NotNull String fileId) {
-            Iterator<CacheEntry> iterator = entries.iterator();
-            while (iterator.hasNext()) {
-                CacheEntry entry = iterator.next();
-                if (fileId.equals(entry.hexId)) {
-                    entry.deleteFile();
-                    iterator.remove();
-                    safeSave();
+        @NotNull
+        private String readId(@NotNull DataInput in) throws IOException {
+            byte[] gid = new byte[in.readShort()];
+            in.readFully(gid);
+            return Utils.bytesToHex(gid);
+        }
+
+        private void writeId(@NotNull DataOutput out, @NotNull String hexId) throws IOException {
+            byte[] gid = Utils.hexToBytes(hexId);
+            out.writeShort(gid.length);
+            out.write(gid);
+        }
+
+        /**
+         * Writes a new snapshot of the table and starts a new journal. Entries that have never been decoded
+         * are copied from the previous snapshot as they are. The current journal is kept until the new snapshot
+         * and the new journal are both in place, so a failed compaction leaves the table as it was.
+         */
+        private synchronized void compact() throws IOException {
+            FileLock acquired = lock(false);
+            try {
+                tail();
+
+                long newGeneration = ThreadLocalRandom.current().nextLong();
+                File snapshot = snapshotFile(newGeneration);
+                MappedIndex newMapped;
+                try {
+                    writeSnapshot(snapshot);
+                    newMapped = new MappedIndex(snapshot);
+
+                    File tmpJournal = new File(journalFile.getPath() + ".tmp");
+                    try (FileOutputStream fileOut = new FileOutputStream(tmpJournal)) {
+                        DataOutputStream out = new DataOutputStream(fileOut);
+                        out.writeInt(JOURNAL_VERSION);
+                        out.writeLong(newGeneration);
+                        fileOut.getFD().sync();
+                    }
+
+                    replaceJournal(tmpJournal);
+                } catch (IOException | RuntimeException ex) {
+                    if (snapshot.exists() && !snapshot.delete())
+                        LOGGER.warn("Failed deleting incomplete cache snapshot: " + snapshot);
+
+                    throw ex;
+                }
+
+                closeJournal();
+                if (lockChannel == null) openJournal();
+
+                pending.reset();
+                mapped = newMapped;
+                removed.clear();
+                generation = newGeneration;
+                journalPosition = JOURNAL_HEADER_SIZE;
+                journalRecords = 0;
+                dirty = false;
+
+                deleteStaleSnapshots(snapshot);
+            } finally {
+                unlock(acquired);
+            }
+        }
+
+        private void writeSnapshot(@NotNull File file) throws IOException {
+            try (FileOutputStream fileOut = new FileOutputStream(file)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                out.write(new byte[MappedIndex.HEADER_SIZE]);
+
+                List<String> ids = new ArrayList<>(entries.size());
+                List<int[]> positions = new ArrayList<>(entries.size());
+                for (CacheEntry entry : entries.values()) {
+                    int offset = out.size();
+                    entry.writeTo(out);
+                    ids.add(entry.hexId);
+                    positions.add(new int[]{offset, out.size() - offset});
+                }
+
+                if (mapped != null) {
+                    for (String fileId : mapped.ids()) {
+                        if (entries.containsKey(fileId) || removed.contains(fileId)) continue;
+
+                        int offset = out.size();
+                        mapped.copy(fileId, out);
+                        ids.add(fileId);
+                        positions.add(new int[]{offset, out.size() - offset});
+                    }
+                }
+
+                int slots = 1;
+                while (slots < ids.size() * 2) slots <<= 1;
+
+                int[] table = new int[slots * 3];
+                for (int i = 0; i < ids.size(); i++) {
+                    int hash = ids.get(i).hashCode();
+                    int slot = hash & (slots - 1);
+                    while (table[slot * 3 + 1] != 0) slot = (slot + 1) & (slots - 1);
+
+                    table[slot * 3] = hash;
+                    table[slot * 3 + 1] = positions.get(i)[0];
+                    table[slot * 3 + 2] = positions.get(i)[1];
+                }
+
+                int tableOffset = out.size();
+                for (int value : table) out.writeInt(value);
+                out.flush();
+
+                ByteBuffer header = ByteBuffer.allocate(MappedIndex.HEADER_SIZE);
+                header.putInt(-TABLE_VERSION).putInt(ids.size()).putLong(usedBytes).putInt(slots).putInt(tableOffset);
+                header.flip();
+                fileOut.getChannel().write(header, 0);
+                fileOut.getFD().sync();
+            }
+        }
+
+        /**
+         * Moves the new journal in place of the current one, which stays open meanwhile. Some platforms don't allow
+         * replacing an open file: the move is then retried after closing the current journal, which is reopened if
+         * the move fails again.
+         */
+        private void replaceJournal(@NotNull File tmpJournal) throws IOException {
+            try {
+                Files.move(tmpJournal.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            } catch (IOException ex) {
+                if (journal == null) throw ex;
+                LOGGER.debug("Failed replacing open cache journal, closing it first.", ex);
+            }
+
+            closeJournal();
+            try {
+                Files.move(tmpJournal.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                openJournal();
+                throw ex;
+            }
+        }
+
+        private void openJournal() throws IOException {
+            journalFileOut = new FileOutputStream(journalFile, true);
+            journal = new DataOutputStream(new BufferedOutputStream(journalFileOut));
+        }
+
+        private void closeJournal() {
+            if (journal == null) return;
+
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed closing cache journal!", ex);
+            }
+
+            journal = null;
+            journalFileOut = null;
+        }
+
+        private synchronized void groupCommit() {
+            try {
+                if (journalRecords >= COMPACT_THRESHOLD) compact();
+                else if (dirty) flush();
+                else refresh();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed committing cache journal!", ex);
+            }
+        }
+
+        /**
+         * Writes the journal records to disk. In a shared directory, the records of other processes are applied
+         * first and ours are applied again after them, so that every process ends up in the same state.
+         */
+        private void flush() throws IOException {
+            if (lockChannel == null) {
+                journal.flush();
+                if (syncPolicy != SyncPolicy.NEVER) journalFileOut.getFD().sync();
+                dirty = false;
+                return;
+            }
+
+            FileLock acquired = lock(false);
+            try {
+                tail();
+                if (journalPosition < JOURNAL_HEADER_SIZE) {
+                    compact();
                     return;
                 }
+
+                byte[] records = pending.toByteArray();
+                pending.reset();
+                try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                    if (channel.size() > journalPosition) channel.truncate(journalPosition);
+
+                    ByteBuffer buffer = ByteBuffer.wrap(records);
+                    while (buffer.hasRemaining()) channel.write(buffer, journalPosition + buffer.position());
+                    if (syncPolicy != SyncPolicy.NEVER) channel.force(false);
+                }
+
+                journalPosition += records.length;
+                applyRecords(records, 0, JOURNAL_VERSION);
+                dirty = false;
+            } finally {
+                unlock(acquired);
+            }
+        }
+
+        @NotNull
+        private DataOutputStream record(byte type) throws IOException {
+            DataOutputStream out = lockChannel == null ? journal : pendingOut;
+            out.writeByte(type);
+            return out;
+        }
+
+        private void committed() throws IOException {
+            if (lockChannel == null) journalRecords++;
+            if (syncPolicy == SyncPolicy.ALWAYS) flush();
+            else dirty = true;
+        }
+
+        private void appendEntry(@NotNull CacheEntry entry) {
+            try {
+                entry.writeTo(record(RECORD_ENTRY));
+                committed();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed appending to cache journal!", ex);
+            }
+        }
+
+        private void appendChunk(@NotNull String fileId, int index, int checksum) {
+            try {
+                DataOutputStream out = record(RECORD_CHUNK);
+                writeId(out, fileId);
+                out.writeInt(index);
+                out.writeInt(checksum);
+                committed();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed appending to cache journal!", ex);
+            }
+        }
+
+        private void appendRemove(@NotNull String fileId) {
+            try {
+                writeId(record(RECORD_REMOVE), fileId);
+                committed();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed appending to cache journal!", ex);
+            }
+        }
+
+        private void appendAccess(@NotNull CacheEntry entry) {
+            try {
+                DataOutputStream out = record(RECORD_ACCESS);
+                writeId(out, entry.hexId);
+                out.writeLong(entry.lastAccess);
+                out.writeInt(entry.hits);
+                committed();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed appending to cache journal!", ex);
+            }
+        }
+
+        private void appendTrim(@NotNull String fileId, int keep) {
+            try {
+                DataOutputStream out = record(RECORD_TRIM);
+                writeId(out, fileId);
+                out.writeInt(keep);
+                committed();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed appending to cache journal!", ex);
+            }
+        }
+
+        private void appendInvalidate(@NotNull String fileId, int index) {
+            try {
+                DataOutputStream out = record(RECORD_INVALIDATE);
+                writeId(out, fileId);
+                out.writeInt(index);
+                committed();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed appending to cache journal!", ex);
+            }
+        }
+
+        void scheduleCleanUp() {
+            scheduler.execute(this::cleanOldTracks);
+        }
+
+        /**
+         * Collects the entries last accessed before {@code accessedBefore} without decoding them. The lock is held
+         * only to take a snapshot of the table, the memory-mapped part is scanned without it.
+         *
+         * @return At most {@code limit} entries with the lowest eviction score, sorted by score
+         */
+        @NotNull
+        private List<Candidate> candidates(long accessedBefore, int limit) {
+            PriorityQueue<Candidate> heap = new PriorityQueue<>(Comparator.comparingLong(Candidate::score).reversed());
+            MappedIndex index;
+            Set<String> skip;
+            synchronized (this) {
+                for (CacheEntry entry : entries.values())
+                    if (entry.lastAccess < accessedBefore)
+                        offer(heap, new Candidate(entry.hexId, entry.lastAccess, entry.hits), limit);
+
+                index = mapped;
+                skip = new HashSet<>(removed);
+                skip.addAll(entries.keySet());
+            }
+
+            if (index != null) {
+                index.scan((offset, lastAccess, hits) -> {
+                    if (lastAccess >= accessedBefore) return;
+                    if (heap.size() >= limit && score(lastAccess, hits) >= heap.peek().score()) return;
+
+                    String fileId = index.idAt(offset);
+                    if (!skip.contains(fileId)) offer(heap, new Candidate(fileId, lastAccess, hits), limit);
+                });
+            }
+
+            List<Candidate> candidates = new ArrayList<>(heap);
+            candidates.sort(Comparator.comparingLong(Candidate::score));
+            return candidates;
+        }
+
+        private void offer(@NotNull PriorityQueue<Candidate> heap, @NotNull Candidate candidate, int limit) {
+            heap.add(candidate);
+            if (heap.size() > limit) heap.poll();
+        }
+
+        private void cleanOldTracks() {
+            long accessedBefore = System.currentTimeMillis() - CLEAN_UP_THRESHOLD;
+            for (Candidate candidate : candidates(accessedBefore, Integer.MAX_VALUE)) {
+                synchronized (this) {
+                    CacheEntry entry = get(candidate.fileId);
+                    if (entry == null || entry.lastAccess >= accessedBefore) continue;
+
+                    stats.evictions.increment();
+                    usedBytes -= entry.cachedBytes();
+                    entry.deleteFile();
+                    removeEntry(entry.hexId);
+                    appendRemove(entry.hexId);
+                }
+            }
+        }
+
+        /**
+         * Evicts entries until the cache size is below the quota. Entries are ordered by last access, more frequently
+         * accessed entries are favoured. Each run performs at most {@link #MAX_EVICTIONS_PER_RUN} evictions.
+         */
+        private void evict() {
+            long before;
+            synchronized (this) {
+                if (usedBytes <= quota) return;
+                before = usedBytes;
+            }
+
+            long target = quota - quota / 10;
+            List<Candidate> candidates = candidates(System.currentTimeMillis() - EVICTION_GRACE, MAX_EVICTIONS_PER_RUN);
+
+            int evictions = 0;
+            for (Candidate candidate : candidates) {
+                synchronized (this) {
+                    if (usedBytes <= target || evictions >= MAX_EVICTIONS_PER_RUN) break;
+
+                    CacheEntry entry = get(candidate.fileId);
+                    if (entry == null || entry.lastAccess != candidate.lastAccess) continue;
+
+                    int keep = entry.headChunks();
+                    if (entry.cachedChunks() > keep) {
+                        usedBytes -= entry.cachedBytes();
+                        entry.trimFile(keep);
+                        usedBytes += entry.cachedBytes();
+                        appendTrim(entry.hexId, keep);
+                        evictions++;
+                    }
+                }
+            }
+
+            for (Candidate candidate : candidates) {
+                synchronized (this) {
+                    if (usedBytes <= target || evictions >= MAX_EVICTIONS_PER_RUN) break;
+
+                    CacheEntry entry = get(candidate.fileId);
+                    if (entry == null || entry.lastAccess != candidate.lastAccess) continue;
+
+                    usedBytes -= entry.cachedBytes();
+                    entry.deleteFile();
+                    removeEntry(entry.hexId);
+                    appendRemove(entry.hexId);
+                    evictions++;
+                }
+            }
+
+            stats.evictions.add(evictions);
+            synchronized (this) {
+                LOGGER.trace(String.format("Cache eviction freed %d bytes, evictions: %d, used: %d, quota: %d", before - usedBytes, evictions, usedBytes, quota));
+            }
+        }
+
+        synchronized boolean has(@NotNull String fileId, int chunk) {
+            CacheEntry entry = get(fileId);
+            return entry != null && entry.has(chunk);
+        }
+
+        synchronized int firstMissing(@NotNull String fileId, int from) {
+            CacheEntry entry = get(fileId);
+            return entry == null ? from : entry.firstMissing(from);
+        }
+
+        synchronized boolean isComplete(@NotNull String fileId) {
+            CacheEntry entry = get(fileId);
+            return entry != null && entry.isComplete();
+        }
+
+        synchronized boolean hasHeaders(@NotNull String fileId) {
+            if (get(fileId) != null) return true;
+            if (lockChannel == null) return false;
+
+            refresh();
+            return get(fileId) != null;
+        }
+
+        synchronized void writtenChunk(@NotNull String fileId, int index, int checksum) {
+            CacheEntry entry = get(fileId);
+            if (entry == null) return;
+
+            if (!entry.has(index)) usedBytes += CHUNK_SIZE;
+            entry.writtenChunk(index, checksum);
+            appendChunk(fileId, index, checksum);
+        }
+
+        /**
+         * Checks the checksum of a chunk read from the cache. Chunks cached before checksums were introduced are
+         * trusted and their checksum is recorded.
+         *
+         * @return Whether the chunk is valid
+         */
+        synchronized boolean verify(@NotNull String fileId, int index, int checksum) {
+            CacheEntry entry = get(fileId);
+            if (entry == null || !entry.has(index)) return false;
+
+            if (!entry.hasChecksum(index)) {
+                entry.writtenChunk(index, checksum);
+                appendChunk(fileId, index, checksum);
+                return true;
+            }
+
+            return entry.checksum(index) == checksum;
+        }
+
+        synchronized void invalidate(@NotNull String fileId, int index) {
+            CacheEntry entry = get(fileId);
+            if (entry == null || !entry.has(index)) return;
+
+            usedBytes -= CHUNK_SIZE;
+            entry.invalidate(index);
+            appendInvalidate(fileId, index);
+            stats.invalidations.increment();
+        }
+
+        /**
+         * @return The IDs of all the entries currently in the table
+         */
+        @NotNull
+        List<String> ids() {
+            MappedIndex index;
+            Set<String> skip;
+            List<String> ids;
+            synchronized (this) {
+                index = mapped;
+                ids = new ArrayList<>(entries.keySet());
+                skip = new HashSet<>(removed);
+                skip.addAll(ids);
+            }
+
+            if (index != null) {
+                for (String fileId : index.ids())
+                    if (!skip.contains(fileId)) ids.add(fileId);
+            }
+
+            return ids;
+        }
+
+        /**
+         * @return The cached chunks of the given entry, or {@code null} if it doesn't exist
+         */
+        @Nullable
+        synchronized BitSet cachedChunks(@NotNull String fileId) {
+            CacheEntry entry = get(fileId);
+            return entry == null ? null : (BitSet) entry.chunks.clone();
+        }
+
+        synchronized void writeHeaders(@NotNull String fileId, byte[] headersId, byte[][] headersData, short chunksCount) {
+            CacheEntry entry = new CacheEntry(fileId, headersId, headersData, chunksCount);
+            CacheEntry old = removeEntry(fileId);
+            entries.put(fileId, entry);
+            if (old != null) usedBytes -= old.cachedBytes();
+            appendEntry(entry);
+        }
+
+        synchronized void writtenChunks(@NotNull List<Writer.PendingWrite> writes) {
+            for (Writer.PendingWrite write : writes)
+                if (write.written) writtenChunk(write.handler.fileId, write.index, write.checksum);
+        }
+
+        synchronized void remove(@NotNull String fileId) {
+            CacheEntry entry = removeEntry(fileId);
+            if (entry != null) {
+                usedBytes -= entry.cachedBytes();
+                entry.deleteFile();
+                appendRemove(fileId);
             }
         }
 
         void requestHeaders(@NotNull String fileId, @NotNull AudioFile file) {
-            for (CacheEntry entry : entries) {
-                if (fileId.equals(entry.hexId)) {
-                    entry.requestHeaders(file);
-                    return;
+            CacheEntry entry;
+            synchronized (this) {
+                entry = get(fileId);
+                if (entry != null) {
+                    entry.accessed(System.currentTimeMillis(), entry.hits + 1);
+                    appendAccess(entry);
                 }
             }
 
-            file.cacheFailedHeader(file);
+            if (entry == null) file.cacheFailedHeader(file);
+            else entry.requestHeaders(file);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            scheduler.shutdown();
+            compact();
+            closeJournal();
+            if (lockChannel != null) lockChannel.close();
+        }
+
+        /**
+         * A read-only view of a snapshot. The file starts with a fixed size header, followed by the encoded entries
+         * and an open addressing hash table of {@code (hash, offset, length)} slots.
+         */
+        private class MappedIndex {
+            private static final int HEADER_SIZE = 24;
+            private static final int SLOT_SIZE = 12;
+            private final ByteBuffer buffer;
+            private final long usedBytes;
+            private final int slots;
+            private final int tableOffset;
+
+            MappedIndex(@NotNull File file) throws IOException {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+
+                if (buffer.getInt(0) != -TABLE_VERSION) throw new IOException("Unknown table version: " + -buffer.getInt(0));
+                usedBytes = buffer.getLong(8);
+                slots = buffer.getInt(16);
+                tableOffset = buffer.getInt(20);
+            }
+
+            /**
+             * @return The slot containing the entry, or {@code -1}
+             */
+            private int find(@NotNull String fileId) {
+                int hash = fileId.hashCode();
+                byte[] gid = Utils.hexToBytes(fileId);
+                for (int slot = hash & (slots - 1), i = 0; i < slots; slot = (slot + 1) & (slots - 1), i++) {
+                    int base = tableOffset + slot * SLOT_SIZE;
+                    int offset = buffer.getInt(base + 4);
+                    if (offset == 0) return -1;
+                    if (buffer.getInt(base) == hash && matches(offset, gid)) return slot;
+                }
+
+                return -1;
+            }
+
+            private boolean matches(int offset, byte[] gid) {
+                if (buffer.getShort(offset) != gid.length) return false;
+                for (int i = 0; i < gid.length; i++)
+                    if (buffer.get(offset + 2 + i) != gid[i]) return false;
+
+                return true;
+            }
+
+            @NotNull
+            private ByteBuffer slice(int slot) {
+                int base = tableOffset + slot * SLOT_SIZE;
+                int offset = buffer.getInt(base + 4);
+                ByteBuffer slice = buffer.duplicate();
+                slice.limit(offset + buffer.getInt(base + 8));
+                slice.position(offset);
+                return slice;
+            }
+
+            @Nullable
+            CacheEntry load(@NotNull String fileId) throws IOException {
+                int slot = find(fileId);
+                if (slot == -1) return null;
+
+                ByteBuffer slice = slice(slot);
+                return new CacheEntry(new DataInputStream(new InputStream() {
+                    @Override
+                    public int read() {
+                        return slice.hasRemaining() ? slice.get() & 0xFF : -1;
+                    }
+
+                    @Override
+                    public int read(@NotNull byte[] b, int off, int len) {
+                        if (!slice.hasRemaining()) return -1;
+
+                        len = Math.min(len, slice.remaining());
+                        slice.get(b, off, len);
+                        return len;
+                    }
+                }), TABLE_VERSION);
+            }
+
+            void copy(@NotNull String fileId, @NotNull DataOutput out) throws IOException {
+                int slot = find(fileId);
+                if (slot == -1) return;
+
+                ByteBuffer slice = slice(slot);
+                byte[] raw = new byte[slice.remaining()];
+                slice.get(raw);
+                out.write(raw);
+            }
+
+            @NotNull
+            List<String> ids() {
+                List<String> ids = new ArrayList<>();
+                for (int slot = 0; slot < slots; slot++) {
+                    int offset = buffer.getInt(tableOffset + slot * SLOT_SIZE + 4);
+                    if (offset != 0) ids.add(idAt(offset));
+                }
+
+                return ids;
+            }
+
+            @NotNull
+            String idAt(int offset) {
+                byte[] gid = new byte[buffer.getShort(offset)];
+                for (int i = 0; i < gid.length; i++) gid[i] = buffer.get(offset + 2 + i);
+                return Utils.bytesToHex(gid);
+            }
+
+            /**
+             * Visits every entry without decoding it, the last access and the hits are the last fields of an entry.
+             */
+            void scan(@NotNull EntryVisitor visitor) {
+                for (int slot = 0; slot < slots; slot++) {
+                    int base = tableOffset + slot * SLOT_SIZE;
+                    int offset = buffer.getInt(base + 4);
+                    if (offset == 0) continue;
+
+                    int end = offset + buffer.getInt(base + 8);
+                    visitor.visit(offset, buffer.getLong(end - 12), buffer.getInt(end - 4));
+                }
+            }
+        }
+
+        /**
+         * An entry that may be evicted, only what's needed to sort the entries is kept.
+         */
+        private class Candidate {
+            private final String fileId;
+            private final long lastAccess;
+            private final int hits;
+
+            Candidate(@NotNull String fileId, long lastAccess, int hits) {
+                this.fileId = fileId;
+                this.lastAccess = lastAccess;
+                this.hits = hits;
+            }
+
+            long score() {
+                return CacheManager.score(lastAccess, hits);
+            }
         }
 
         private class CacheEntry {
@@ -174,17 +1321,27 @@ public class CacheManager {
             private final ByteString gid;
             private final byte[] headersId;
             private final byte[][] headersData;
-            private final boolean[] chunks;
+            private final BitSet chunks;
+            private final BitSet checksummed;
+            private final int[] checksums;
+            private final int chunksCount;
+            private long lastAccess;
+            private int hits;
 
             CacheEntry(@NotNull String hexId, byte[] headersId, byte[][] headersData, short chunksSize) {
                 this.hexId = hexId;
                 this.gid = ByteString.copyFrom(Utils.hexToBytes(hexId));
                 this.headersId = headersId;
                 this.headersData = headersData;
-                this.chunks = new boolean[chunksSize];
+                this.chunksCount = chunksSize;
+                this.chunks = new BitSet(chunksSize);
+                this.checksummed = new BitSet(chunksSize);
+                this.checksums = new int[chunksSize];
+                this.lastAccess = System.currentTimeMillis();
+                this.hits = 1;
             }
 
-            CacheEntry(@NotNull DataInput in) throws IOException {
+            CacheEntry(@NotNull DataInput in, int version) throws IOException {
                 byte[] buffer = new byte[in.readShort()];
                 in.readFully(buffer);
                 gid = ByteString.copyFrom(buffer);
@@ -200,14 +1357,71 @@ public class CacheManager {
                     in.readFully(headersData[i]);
                 }
 
-                short chunksCount = in.readShort();
-                chunks = new boolean[chunksCount];
-                for (int i = 0; i < chunksCount; i++)
-                    chunks[i] = in.readBoolean();
+                chunksCount = in.readShort();
+                if (version >= 3) {
+                    chunks = readBits(in, chunksCount);
+                } else {
+                    chunks = new BitSet(chunksCount);
+                    for (int i = 0; i < chunksCount; i++)
+                        if (in.readBoolean()) chunks.set(i);
+                }
+
+                checksums = new int[chunksCount];
+                if (version >= 4) {
+                    checksummed = readBits(in, chunksCount);
+                    for (int i = checksummed.nextSetBit(0); i >= 0; i = checksummed.nextSetBit(i + 1))
+                        checksums[i] = in.readInt();
+                } else {
+                    checksummed = new BitSet(chunksCount);
+                }
+
+                if (version >= 2) {
+                    lastAccess = in.readLong();
+                    hits = in.readInt();
+                } else {
+                    lastAccess = getCreatedAtMillis();
+                    hits = 1;
+                }
+            }
+
+            @NotNull
+            private BitSet readBits(@NotNull DataInput in, int count) throws IOException {
+                long[] words = new long[(count + 63) / 64];
+                for (int i = 0; i < words.length; i++)
+                    words[i] = in.readLong();
+
+                return BitSet.valueOf(words);
+            }
+
+            private void writeBits(@NotNull DataOutput out, @NotNull BitSet bits) throws IOException {
+                long[] words = bits.toLongArray();
+                int wordsCount = (chunksCount + 63) / 64;
+                for (int i = 0; i < wordsCount; i++)
+                    out.writeLong(i < words.length ? words[i] : 0);
             }
 
             boolean has(int chunk) {
-                return chunks[chunk];
+                return chunks.get(chunk);
+            }
+
+            boolean hasChecksum(int chunk) {
+                return checksummed.get(chunk);
+            }
+
+            int checksum(int chunk) {
+                return checksums[chunk];
+            }
+
+            /**
+             * @return The index of the first chunk not cached starting from {@code from}, or {@code -1} if there is none
+             */
+            int firstMissing(int from) {
+                int index = chunks.nextClearBit(from);
+                return index < chunksCount ? index : -1;
+            }
+
+            boolean isComplete() {
+                return chunks.cardinality() == chunksCount;
             }
 
             private void writeTo(@NotNull DataOutput out) throws IOException {
@@ -223,9 +1437,56 @@ public class CacheManager {
                     out.write(headersData[i]);
                 }
 
-                out.writeShort(chunks.length);
-                for (boolean chunk : chunks)
-                    out.writeBoolean(chunk);
+                out.writeShort(chunksCount);
+                writeBits(out, chunks);
+                writeBits(out, checksummed);
+                for (int i = checksummed.nextSetBit(0); i >= 0; i = checksummed.nextSetBit(i + 1))
+                    out.writeInt(checksums[i]);
+
+                out.writeLong(lastAccess);
+                out.writeInt(hits);
+            }
+
+            void accessed(long lastAccess, int hits) {
+                this.lastAccess = lastAccess;
+                this.hits = hits;
+            }
+
+            int cachedChunks() {
+                return chunks.cardinality();
+            }
+
+            long cachedBytes() {
+                return (long) cachedChunks() * CHUNK_SIZE;
+            }
+
+            /**
+             * @return The number of leading chunks that should survive a partial eviction, popular entries keep more
+             */
+            int headChunks() {
+                return Math.min(chunksCount, 32 - Integer.numberOfLeadingZeros(hits));
+            }
+
+            void trimmedTo(int keep) {
+                if (keep < chunksCount) {
+                    chunks.clear(keep, chunksCount);
+                    checksummed.clear(keep, chunksCount);
+                }
+            }
+
+            void trimFile(int keep) {
+                trimmedTo(keep);
+                if (segments != null) {
+                    segments.trim(hexId, keep);
+                    return;
+                }
+
+                try (RandomAccessFile file = new RandomAccessFile(new File(cacheDir, hexId), "rw")) {
+                    if (file.length() > (long) keep * CHUNK_SIZE)
+                        file.setLength((long) keep * CHUNK_SIZE);
+                } catch (IOException ex) {
+                    LOGGER.warn("Failed trimming cached track: " + hexId, ex);
+                }
             }
 
             void requestHeaders(@NotNull AudioFile file) {
@@ -236,7 +1497,19 @@ public class CacheManager {
             }
 
             void writtenChunk(int index) {
-                chunks[index] = true;
+                chunks.set(index);
+                checksummed.clear(index);
+            }
+
+            void writtenChunk(int index, int checksum) {
+                chunks.set(index);
+                checksummed.set(index);
+                checksums[index] = checksum;
+            }
+
+            void invalidate(int index) {
+                chunks.clear(index);
+                checksummed.clear(index);
             }
 
             @Nullable
@@ -259,6 +1532,11 @@ public class CacheManager {
             }
 
             void deleteFile() {
+                if (segments != null) {
+                    segments.delete(hexId);
+                    return;
+                }
+
                 File toDelete = new File(cacheDir, hexId);
                 if (toDelete.delete()) {
                     LOGGER.trace("Deleted cached track: " + hexId);
@@ -270,52 +1548,373 @@ public class CacheManager {
         }
     }
 
+    /**
+     * Writes chunks to the cache on a dedicated thread so that the network path never waits for the disk. Writes are
+     * processed in batches and the control table is updated once per batch.
+     */
+    private class Writer implements Runnable, Closeable {
+        private final PendingWrite poison = new PendingWrite(null, null, -1);
+        private final BlockingQueue<PendingWrite> queue = new ArrayBlockingQueue<>(WRITE_QUEUE_SIZE);
+        private final CountDownLatch stopped = new CountDownLatch(1);
+        private boolean closed = false;
+
+        /**
+         * @return Whether the write has been queued, writes are dropped if the queue is full or the writer is closed
+         */
+        synchronized boolean offer(@NotNull Handler handler, @NotNull byte[] buffer, int index) {
+            if (closed) {
+                stats.droppedWrites.increment();
+                LOGGER.debug(String.format("Cache writer is closed, dropped chunk %d of %s.", index, handler.fileId));
+                return false;
+            }
+
+            handler.acquire();
+            if (queue.offer(new PendingWrite(handler, buffer, index))) return true;
+
+            handler.release();
+            stats.droppedWrites.increment();
+            LOGGER.debug(String.format("Cache write queue is full, dropped chunk %d of %s.", index, handler.fileId));
+            return false;
+        }
+
+        /**
+         * Queues the write, blocking until there's room in the queue. Only the writer thread drains the queue and it
+         * never takes this lock, so blocking here can't hold {@link #close()} forever.
+         *
+         * @return Whether the write has been queued, writes are dropped if the writer is closed
+         */
+        synchronized boolean put(@NotNull Handler handler, @NotNull byte[] buffer, int index) throws InterruptedException {
+            if (closed) {
+                stats.droppedWrites.increment();
+                LOGGER.debug(String.format("Cache writer is closed, dropped chunk %d of %s.", index, handler.fileId));
+                return false;
+            }
+
+            handler.acquire();
+            try {
+                queue.put(new PendingWrite(handler, buffer, index));
+                return true;
+            } catch (InterruptedException ex) {
+                handler.release();
+                throw ex;
+            }
+        }
+
+        @Override
+        public void run() {
+            List<PendingWrite> batch = new ArrayList<>(WRITE_BATCH_SIZE);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, WRITE_BATCH_SIZE - 1);
+
+                    boolean stop = batch.remove(poison);
+                    writeHandoff.lock();
+                    try {
+                        for (PendingWrite write : batch) {
+                            try {
+                                long start = System.nanoTime();
+                                write.checksum = write.handler.writeNow(write.buffer, write.index);
+                                stats.diskWriteLatency.recordSince(start);
+                                write.written = true;
+                            } catch (IOException | RuntimeException ex) {
+                                LOGGER.warn(String.format("Failed writing chunk %d of %s to cache!", write.index, write.handler.fileId), ex);
+                            }
+                        }
+
+                        controlTable.writtenChunks(batch);
+                    } catch (RuntimeException ex) {
+                        LOGGER.warn("Failed updating cache table after writing chunks!", ex);
+                    } finally {
+                        writeHandoff.unlock();
+                        for (PendingWrite write : batch)
+                            write.handler.release();
+                    }
+
+                    batch.clear();
+                    if (stop) break;
+                }
+            } catch (InterruptedException ex) {
+                LOGGER.fatal("Cache writer interrupted!", ex);
+            } finally {
+                stopped.countDown();
+            }
+        }
+
+        /**
+         * Flushes all the pending writes and stops the writer
+         */
+        @Override
+        public void close() {
+            try {
+                synchronized (this) {
+                    if (closed) return;
+
+                    closed = true;
+                    queue.put(poison);
+                }
+
+                stopped.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                LOGGER.warn("Interrupted while flushing cache writes!", ex);
+            }
+        }
+
+        private class PendingWrite {
+            private final Handler handler;
+            private final byte[] buffer;
+            private final int index;
+            private boolean written = false;
+            private int checksum;
+
+            PendingWrite(Handler handler, byte[] buffer, int index) {
+                this.handler = handler;
+                this.buffer = buffer;
+                this.index = index;
+            }
+        }
+    }
+
+    /**
+     * Walks the whole cache periodically and verifies the checksum of every chunk. The I/O rate is limited so that
+     * the scrubber doesn't interfere with playback. Corrupted chunks are invalidated.
+     */
+    private class Scrubber implements Runnable {
+        private final long bytesPerSecond;
+        private final CountDownLatch stopped = new CountDownLatch(1);
+        private final Thread thread;
+
+        Scrubber(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+
+            thread = new Thread(this, "cache-scrubber");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped.await(SCRUB_INTERVAL, TimeUnit.MILLISECONDS))
+                    scrub();
+            } catch (InterruptedException ex) {
+                LOGGER.warn("Cache scrubber interrupted!", ex);
+            }
+        }
+
+        /**
+         * Stops the scrubber and waits for it. The thread isn't interrupted because that would close the segment
+         * store channel it may be reading from.
+         */
+        void stop() {
+            stopped.countDown();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException ex) {
+                LOGGER.warn("Interrupted while stopping cache scrubber!", ex);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void scrub() throws InterruptedException {
+            int verified = 0;
+            int invalidated = 0;
+            for (String fileId : controlTable.ids()) {
+                if (stopped.getCount() == 0) return;
+
+                BitSet chunks = controlTable.cachedChunks(fileId);
+                if (chunks == null) continue;
+
+                Handler handler = handler(fileId);
+                try {
+                    for (int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i + 1)) {
+                        long start = System.nanoTime();
+                        try {
+                            handler.read(i);
+                            verified++;
+                        } catch (IOException ex) {
+                            if (closed) return;
+
+                            LOGGER.warn(String.format("Invalidating chunk %d of %s: %s", i, fileId, ex.getMessage()));
+                            controlTable.invalidate(fileId, i);
+                            invalidated++;
+                        }
+
+                        long wait = TimeUnit.SECONDS.toNanos(CHUNK_SIZE) / bytesPerSecond - (System.nanoTime() - start);
+                        if (wait > 0 && stopped.await(wait, TimeUnit.NANOSECONDS)) return;
+                    }
+                } finally {
+                    handler.close();
+                }
+            }
+
+            LOGGER.info(String.format("Cache scrub completed, verified: %d, invalidated: %d", verified, invalidated));
+        }
+    }
+
+    /**
+     * A handler is reference counted: each call to {@link CacheManager#handler(ByteString)} must be matched by a call
+     * to {@link Handler#close()}. The underlying file is opened lazily and closed when the handler is idle and the
+     * registry exceeds {@link #MAX_OPEN_HANDLERS}.
+     */
     public class Handler implements Closeable {
-        private final RandomAccessFile cache;
         private final String fileId;
+        private final File file;
+        private RandomAccessFile cache = null;
+        private int refs = 0;
+        private boolean registered = true;
 
-        private Handler(@NotNull String fileId) throws IOException {
+        private Handler(@NotNull String fileId) {
             this.fileId = fileId;
+            this.file = new File(cacheDir, fileId);
+        }
+
+        @NotNull
+        private RandomAccessFile file() throws IOException {
+            if (cache == null) cache = new RandomAccessFile(file, "rw");
+            return cache;
+        }
+
+        private synchronized void closeFile() {
+            if (cache == null) return;
+
+            try {
+                cache.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed closing cache file: " + fileId, ex);
+            }
+
+            cache = null;
+        }
+
+        private void acquire() {
+            synchronized (loadedHandlers) {
+                refs++;
+            }
+        }
 
-            File file = new File(cacheDir, fileId);
-            if (!file.exists() && !file.createNewFile())
-                throw new IOException("Failed creating cache file for " + fileId);
+        private void release() {
+            synchronized (loadedHandlers) {
+                if (--refs > 0) return;
+
+                if (!registered) {
+                    closeFile();
+                    return;
+                }
+            }
 
-            cache = new RandomAccessFile(file, "rw");
+            trimHandlers();
         }
 
         boolean has(int chunk) {
             return controlTable.has(fileId, chunk);
         }
 
+        /**
+         * Releases this handler, the file may be kept open for later use.
+         */
         @Override
-        public void close() throws IOException {
-            cache.close();
+        public void close() {
+            release();
         }
 
         void requestHeaders(@NotNull AudioFile fetch) {
             executorService.execute(() -> controlTable.requestHeaders(fileId, fetch));
         }
 
+        /**
+         * Reads the chunk and verifies its checksum
+         */
+        @NotNull
+        private byte[] read(int index) throws IOException {
+            byte[] buffer;
+            if (segments != null) {
+                buffer = segments.read(fileId, index);
+            } else synchronized (this) {
+                RandomAccessFile cache = file();
+                long pos = (long) index * CHUNK_SIZE;
+                int length = (int) Math.min(CHUNK_SIZE, cache.length() - pos);
+                if (length <= 0) throw new EOFException(String.format("Chunk %d is beyond the end of %s", index, fileId));
+
+                buffer = new byte[length];
+                cache.seek(pos);
+                cache.readFully(buffer);
+            }
+
+            if (!controlTable.verify(fileId, index, checksum(buffer)))
+                throw new IOException(String.format("Checksum mismatch for chunk %d of %s", index, fileId));
+
+            return buffer;
+        }
+
+        /**
+         * Requests a chunk from the cache. Chunks found in memory are delivered immediately on the calling thread.
+         */
         void requestChunk(int index, @NotNull AudioFile file) {
+            byte[] chunk = memory.get(fileId, index);
+            if (chunk != null) {
+                stats.memoryChunks.increment();
+                stats.memoryBytes.add(chunk.length);
+                try {
+                    file.writeChunk(chunk, index, true);
+                } catch (IOException ex) {
+                    LOGGER.fatal("Failed writing chunk, index: " + index, ex);
+                }
+
+                return;
+            }
+
+            acquire();
             executorService.execute(() -> {
                 try {
-                    cache.seek(index * CHUNK_SIZE);
-                    byte[] buffer = new byte[CHUNK_SIZE];
-                    cache.readFully(buffer);
-                    file.writeChunk(buffer, index, true);
+                    long start = System.nanoTime();
+                    byte[] read = read(index);
+                    stats.diskReadLatency.recordSince(start);
+                    stats.diskChunks.increment();
+                    stats.diskBytes.add(read.length);
+                    memory.put(fileId, index, read);
+                    file.writeChunk(read, index, true);
                 } catch (IOException ex) {
-                    LOGGER.fatal("Failed reading chunk, index: " + index, ex);
-                    remove();
+                    LOGGER.warn("Failed reading chunk, index: " + index, ex);
+                    if (!closed) controlTable.invalidate(fileId, index);
                     file.cacheFailedChunk(index, file);
+                } finally {
+                    release();
                 }
             });
         }
 
-        public void write(byte[] buffer, int index) throws IOException {
-            cache.seek(index * CHUNK_SIZE);
-            cache.write(buffer);
-            controlTable.writtenChunk(fileId, index);
+        /**
+         * Writes the chunk in the background, the write is dropped if the writer can't keep up.
+         */
+        public void write(byte[] buffer, int index) {
+            memory.put(fileId, index, buffer);
+            writer.offer(this, buffer, index);
+        }
+
+        /**
+         * Writes the chunk in the background, blocking if the writer can't keep up.
+         *
+         * @return Whether the write has been queued, writes are dropped once the cache is closed
+         */
+        boolean writeBlocking(byte[] buffer, int index) throws InterruptedException {
+            return writer.put(this, buffer, index);
+        }
+
+        /**
+         * @return The checksum of the written chunk
+         */
+        private synchronized int writeNow(byte[] buffer, int index) throws IOException {
+            if (segments != null) {
+                segments.write(fileId, index, buffer);
+            } else {
+                RandomAccessFile cache = file();
+                cache.seek((long) index * CHUNK_SIZE);
+                cache.write(buffer);
+            }
+
+            return checksum(buffer);
         }
 
         public void remove() {
@@ -326,6 +1925,17 @@ public class CacheManager {
             controlTable.writeHeaders(fileId, headersId, headersData, chunksCount);
         }
 
+        /**
+         * @return The index of the first chunk not cached starting from {@code from}, or {@code -1} if all are cached
+         */
+        int firstMissingChunk(int from) {
+            return controlTable.firstMissing(fileId, from);
+        }
+
+        boolean isComplete() {
+            return controlTable.isComplete(fileId);
+        }
+
         boolean hasHeaders() {
             return controlTable.hasHeaders(fileId);
         }
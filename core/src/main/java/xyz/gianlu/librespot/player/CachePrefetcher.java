@@ -0,0 +1,332 @@
+package xyz.gianlu.librespot.player;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.common.proto.Metadata;
+import xyz.gianlu.librespot.common.proto.Playlist4Changes;
+import xyz.gianlu.librespot.common.proto.Playlist4Content;
+import xyz.gianlu.librespot.core.Session;
+import xyz.gianlu.librespot.mercury.MercuryClient;
+import xyz.gianlu.librespot.mercury.MercuryRequests;
+import xyz.gianlu.librespot.mercury.model.AlbumId;
+import xyz.gianlu.librespot.mercury.model.PlaylistId;
+import xyz.gianlu.librespot.mercury.model.TrackId;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warms up the cache by downloading whole tracks of a playlist, album or track list in the background.
+ * Downloads are rate limited and pause while there are chunks being downloaded for playback.
+ *
+ * @author Gianlu
+ */
+public class CachePrefetcher implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(CachePrefetcher.class);
+    private static final long CHUNK_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    private static final long FOREGROUND_POLL_INTERVAL = 100;
+    private static final long FOREGROUND_MAX_WAIT = TimeUnit.SECONDS.toMillis(10);
+    private final Session session;
+    private final CacheManager cacheManager;
+    private final StreamFeeder.AudioQualityPreference audioQualityPreference;
+    private final ExecutorService executorService;
+    private final long bytesPerSecond;
+    private long nextFree = 0;
+
+    CachePrefetcher(@NotNull Session session, @NotNull CacheManager cacheManager, @NotNull StreamFeeder.AudioQualityPreference audioQualityPreference, @NotNull Configuration conf) {
+        this.session = session;
+        this.cacheManager = cacheManager;
+        this.audioQualityPreference = audioQualityPreference;
+        this.bytesPerSecond = conf.prefetchBandwidthKbps() * 1024L / 8;
+        this.executorService = Executors.newFixedThreadPool(Math.max(1, conf.prefetchConcurrency()), r -> {
+            Thread thread = new Thread(r, "cache-prefetch");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts prefetching the given URI.
+     *
+     * @param uri      A {@code spotify:track:}, {@code spotify:album:} or {@code spotify:user:...:playlist:} URI
+     * @param listener An optional listener for the job progress
+     */
+    @NotNull
+    public Job prefetch(@NotNull String uri, @Nullable Listener listener) throws IOException, MercuryClient.MercuryException {
+        return prefetch(resolve(uri), listener);
+    }
+
+    @NotNull
+    public Job prefetch(@NotNull List<TrackId> tracks, @Nullable Listener listener) {
+        Job job = new Job(tracks.size(), listener);
+        for (TrackId id : tracks)
+            job.futures.add(executorService.submit(() -> job.prefetchTrack(id)));
+
+        LOGGER.info(String.format("Started prefetching %d tracks.", tracks.size()));
+        return job;
+    }
+
+    @NotNull
+    private List<TrackId> resolve(@NotNull String uri) throws IOException, MercuryClient.MercuryException {
+        List<TrackId> tracks = new ArrayList<>();
+        if (uri.startsWith("spotify:track:")) {
+            tracks.add(TrackId.fromUri(uri));
+        } else if (uri.startsWith("spotify:album:")) {
+            Metadata.Album album = session.mercury().sendSync(MercuryRequests.getAlbum(AlbumId.fromUri(uri))).proto();
+            for (Metadata.Disc disc : album.getDiscList())
+                for (Metadata.Track track : disc.getTrackList())
+                    tracks.add(TrackId.fromGid(track.getGid()));
+        } else if (uri.contains(":playlist:")) {
+            Playlist4Changes.SelectedListContent playlist = session.mercury().sendSync(MercuryRequests.getPlaylist(PlaylistId.fromUri(uri))).proto();
+            for (Playlist4Content.Item item : playlist.getContents().getItemsList())
+                if (item.getUri().startsWith("spotify:track:"))
+                    tracks.add(TrackId.fromUri(item.getUri()));
+        } else {
+            throw new IllegalArgumentException("Unsupported URI: " + uri);
+        }
+
+        return tracks;
+    }
+
+    private void throttle(int bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) return;
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextFree < now) nextFree = now;
+            wait = nextFree - now;
+            nextFree += bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        }
+
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    private void waitForeground() throws InterruptedException {
+        long waited = 0;
+        while (session.channel().hasForegroundChannels() && waited < FOREGROUND_MAX_WAIT) {
+            Thread.sleep(FOREGROUND_POLL_INTERVAL);
+            waited += FOREGROUND_POLL_INTERVAL;
+        }
+    }
+
+    /**
+     * Stops all the jobs, the tracks being downloaded are left incomplete.
+     */
+    @Override
+    public void close() {
+        executorService.shutdownNow();
+    }
+
+    public interface Configuration {
+        /**
+         * @return How many tracks are downloaded at the same time
+         */
+        int prefetchConcurrency();
+
+        /**
+         * @return The maximum bandwidth used for prefetching in kilobits per second, {@code 0} means unlimited
+         */
+        int prefetchBandwidthKbps();
+    }
+
+    public interface Listener {
+        void trackCompleted(@NotNull Job job, @NotNull TrackId id);
+
+        void trackFailed(@NotNull Job job, @NotNull TrackId id, @NotNull Exception ex);
+
+        void finished(@NotNull Job job);
+    }
+
+    private static class PrefetchException extends IOException {
+        PrefetchException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Stores every chunk it receives in the cache and reports it to the prefetching thread. Every channel delivers
+     * the headers again, they're written to the cache only once, from the first chunk of a file that wasn't cached.
+     */
+    static class PrefetchFile extends AudioFileFetch {
+        private static final int EVENT_HEADERS = -1;
+        private static final int EVENT_ERROR = -2;
+        private final CacheManager.Handler cache;
+        private final BlockingQueue<Integer> events = new LinkedBlockingQueue<>();
+        private boolean writeHeaders;
+
+        /**
+         * @param writeHeaders Whether the headers received from the network should be written to the cache
+         */
+        PrefetchFile(@NotNull CacheManager.Handler cache, boolean writeHeaders) {
+            super(cache);
+            this.cache = cache;
+            this.writeHeaders = writeHeaders;
+        }
+
+        @Override
+        public synchronized void writeHeader(byte id, byte[] bytes, boolean cached) {
+            if (!cached && !writeHeaders) return;
+
+            super.writeHeader(id, bytes, cached);
+            if (id == 0x3) events.add(EVENT_HEADERS);
+        }
+
+        @Override
+        public synchronized void headerEnd(boolean cached) {
+            if (!cached && !writeHeaders) return;
+
+            super.headerEnd(cached);
+            writeHeaders = false;
+        }
+
+        @Override
+        public void writeChunk(byte[] chunk, int chunkIndex, boolean cached) {
+            if (!cached) {
+                try {
+                    if (!cache.writeBlocking(chunk, chunkIndex)) {
+                        events.add(EVENT_ERROR);
+                        return;
+                    }
+                } catch (InterruptedException ex) {
+                    events.add(EVENT_ERROR);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            events.add(chunkIndex);
+        }
+
+        @Override
+        public void cacheFailedHeader(@NotNull AudioFile file) {
+            events.add(EVENT_ERROR);
+        }
+
+        @Override
+        public void streamError(short code) {
+            LOGGER.warn(String.format("Stream error while prefetching, code: %d", code));
+            events.add(EVENT_ERROR);
+        }
+
+        void await(int event) throws InterruptedException, PrefetchException {
+            while (true) {
+                Integer received = events.poll(CHUNK_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (received == null) throw new PrefetchException("Timed out waiting for " + event);
+                else if (received == EVENT_ERROR) throw new PrefetchException("Failed receiving " + event);
+                else if (received == event) return;
+            }
+        }
+    }
+
+    public class Job {
+        public final int totalTracks;
+        private final Listener listener;
+        private final List<Future<?>> futures = new CopyOnWriteArrayList<>();
+        private final AtomicInteger completedTracks = new AtomicInteger(0);
+        private final AtomicInteger failedTracks = new AtomicInteger(0);
+        private final AtomicLong downloadedBytes = new AtomicLong(0);
+        private volatile boolean cancelled = false;
+
+        private Job(int totalTracks, @Nullable Listener listener) {
+            this.totalTracks = totalTracks;
+            this.listener = listener;
+        }
+
+        private void prefetchTrack(@NotNull TrackId id) {
+            if (cancelled) return;
+
+            try {
+                Metadata.Track track = session.mercury().sendSync(MercuryRequests.getTrack(id)).proto();
+                track = StreamFeeder.pickAlternativeIfNecessary(track);
+                if (track == null) throw new PrefetchException("Couldn't find playable track: " + id.toHex());
+
+                Metadata.AudioFile file = audioQualityPreference.getFile(track);
+                if (file == null) throw new PrefetchException("Couldn't find any suitable audio file: " + id.toHex());
+
+                session.audioKey().getAudioKey(track, file);
+
+                CacheManager.Handler cache = cacheManager.handler(file.getFileId());
+                if (cache == null) throw new IllegalStateException("Cache is disabled!");
+
+                try {
+                    prefetchFile(file, cache);
+                } finally {
+                    cache.close();
+                }
+
+                completedTracks.incrementAndGet();
+                if (listener != null) listener.trackCompleted(this, id);
+            } catch (IOException | MercuryClient.MercuryException | InterruptedException | RuntimeException ex) {
+                if (ex instanceof InterruptedException) Thread.currentThread().interrupt();
+
+                LOGGER.warn("Failed prefetching track: " + id.toHex(), ex);
+                failedTracks.incrementAndGet();
+                if (listener != null) listener.trackFailed(this, id, ex);
+            }
+
+            if (isDone() && listener != null) listener.finished(this);
+        }
+
+        private void prefetchFile(@NotNull Metadata.AudioFile file, @NotNull CacheManager.Handler cache) throws IOException, InterruptedException {
+            boolean cached = cache.hasHeaders();
+            PrefetchFile prefetch = new PrefetchFile(cache, !cached);
+            int index;
+            if (cached) {
+                cache.requestHeaders(prefetch);
+                prefetch.await(PrefetchFile.EVENT_HEADERS);
+                index = 0;
+            } else {
+                waitForeground();
+                throttle(ChannelManager.CHUNK_SIZE);
+                session.channel().requestChunk(file.getFileId(), 0, prefetch, true);
+                prefetch.await(0);
+                downloadedBytes.addAndGet(ChannelManager.CHUNK_SIZE);
+
+                // The write of chunk 0 may still be queued, the table can't be asked about it
+                index = 1;
+            }
+
+            int chunks = prefetch.getChunks();
+            while (!cancelled && (index = cache.firstMissingChunk(index)) != -1 && index < chunks) {
+                waitForeground();
+                throttle(ChannelManager.CHUNK_SIZE);
+                session.channel().requestChunk(file.getFileId(), index, prefetch, true);
+                prefetch.await(index);
+                downloadedBytes.addAndGet(ChannelManager.CHUNK_SIZE);
+                index++;
+            }
+
+            prefetch.close();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            for (Future<?> future : futures)
+                future.cancel(true);
+        }
+
+        public boolean isDone() {
+            return cancelled || completedTracks.get() + failedTracks.get() >= totalTracks;
+        }
+
+        public int completedTracks() {
+            return completedTracks.get();
+        }
+
+        public int failedTracks() {
+            return failedTracks.get();
+        }
+
+        public long downloadedBytes() {
+            return downloadedBytes.get();
+        }
+    }
+}
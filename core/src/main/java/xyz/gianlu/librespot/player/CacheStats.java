@@ -0,0 +1,76 @@
+package xyz.gianlu.librespot.player;
+
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+import xyz.gianlu.librespot.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the cache and of the chunks it serves.
+ *
+ * @author Gianlu
+ */
+public final class CacheStats {
+    final LongAdder fileHits = new LongAdder();
+    final LongAdder filePartialHits = new LongAdder();
+    final LongAdder fileMisses = new LongAdder();
+    final LongAdder memoryChunks = new LongAdder();
+    final LongAdder memoryBytes = new LongAdder();
+    final LongAdder diskChunks = new LongAdder();
+    final LongAdder diskBytes = new LongAdder();
+    final LongAdder networkChunks = new LongAdder();
+    final LongAdder networkBytes = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder invalidations = new LongAdder();
+    final LongAdder droppedWrites = new LongAdder();
+    final LatencyHistogram diskReadLatency = new LatencyHistogram();
+    final LatencyHistogram diskWriteLatency = new LatencyHistogram();
+    final LatencyHistogram networkChunkLatency = new LatencyHistogram();
+
+    CacheStats() {
+    }
+
+    /**
+     * @return The fraction of chunk bytes served from memory or disk
+     */
+    public double byteHitRatio() {
+        long cached = memoryBytes.sum() + diskBytes.sum();
+        long total = cached + networkBytes.sum();
+        return total == 0 ? 0 : (double) cached / total;
+    }
+
+    @NotNull
+    public JsonObject toJson() {
+        JsonObject files = new JsonObject();
+        files.addProperty("hits", fileHits.sum());
+        files.addProperty("partialHits", filePartialHits.sum());
+        files.addProperty("misses", fileMisses.sum());
+
+        JsonObject chunks = new JsonObject();
+        chunks.addProperty("memory", memoryChunks.sum());
+        chunks.addProperty("disk", diskChunks.sum());
+        chunks.addProperty("network", networkChunks.sum());
+
+        JsonObject bytes = new JsonObject();
+        bytes.addProperty("memory", memoryBytes.sum());
+        bytes.addProperty("disk", diskBytes.sum());
+        bytes.addProperty("network", networkBytes.sum());
+        bytes.addProperty("hitRatio", byteHitRatio());
+
+        JsonObject latency = new JsonObject();
+        latency.add("diskRead", diskReadLatency.toJson());
+        latency.add("diskWrite", diskWriteLatency.toJson());
+        latency.add("networkChunk", networkChunkLatency.toJson());
+
+        JsonObject obj = new JsonObject();
+        obj.add("files", files);
+        obj.add("chunks", chunks);
+        obj.add("bytes", bytes);
+        obj.addProperty("evictions", evictions.sum());
+        obj.addProperty("invalidations", invalidations.sum());
+        obj.addProperty("droppedWrites", droppedWrites.sum());
+        obj.add("latency", latency);
+        return obj;
+    }
+}
@@ -12,9 +12,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -26,7 +26,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ChannelManager extends PacketsManager {
     public static final int CHUNK_SIZE = 0x20000;
     private static final Logger LOGGER = Logger.getLogger(ChannelManager.class);
-    private final Map<Short, Channel> channels = new HashMap<>();
+    private final Map<Short, Channel> channels = new ConcurrentHashMap<>();
     private final AtomicInteger seqHolder = new AtomicInteger(0);
     private final ExecutorService executorService = Executors.newCachedThreadPool();
 
@@ -35,10 +35,17 @@ public class ChannelManager extends PacketsManager {
     }
 
     void requestChunk(@NotNull ByteString fileId, int index, @NotNull AudioFile file) throws IOException {
+        requestChunk(fileId, index, file, false);
+    }
+
+    /**
+     * @param background Whether this request is not needed for playback, see {@link #hasForegroundChannels()}
+     */
+    void requestChunk(@NotNull ByteString fileId, int index, @NotNull AudioFile file, boolean background) throws IOException {
         int start = index * CHUNK_SIZE / 4;
         int end = (index + 1) * CHUNK_SIZE / 4;
 
-        Channel channel = new Channel(file, index);
+        Channel channel = new Channel(file, index, background);
         channels.put(channel.id, channel);
 
         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
@@ -56,6 +63,16 @@ public class ChannelManager extends PacketsManager {
         session.send(Packet.Type.StreamChunk, bytes.toByteArray());
     }
 
+    /**
+     * @return Whether there are channels serving playback, background work should wait for them
+     */
+    boolean hasForegroundChannels() {
+        for (Channel channel : channels.values())
+            if (!channel.background) return true;
+
+        return false;
+    }
+
     @Override
     protected void handle(@NotNull Packet packet) {
         LOGGER.warn(String.format("Couldn't handle packet, cmd: %s, length %d", packet.type(), packet.payload.length));
@@ -81,6 +98,7 @@ public class ChannelManager extends PacketsManager {
                 return;
             }
 
+            channels.remove(id);
             channel.streamError(payload.getShort());
         } else {
             LOGGER.warn(String.format("Couldn't handle packet, cmd: %s, payload: %s", packet.type(), Utils.bytesToHex(packet.payload)));
@@ -97,12 +115,14 @@ public class ChannelManager extends PacketsManager {
         private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>();
         private final AudioFile file;
         private final int chunkIndex;
+        private final boolean background;
         private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(CHUNK_SIZE);
         private volatile boolean header = true;
 
-        private Channel(@NotNull AudioFile file, int chunkIndex) {
+        private Channel(@NotNull AudioFile file, int chunkIndex, boolean background) {
             this.file = file;
             this.chunkIndex = chunkIndex;
+            this.background = background;
             synchronized (seqHolder) {
                 id = (short) seqHolder.getAndIncrement();
             }
@@ -0,0 +1,134 @@
+package xyz.gianlu.librespot.player;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory cache of encrypted chunks that sits in front of the disk cache. It uses a segmented LRU policy:
+ * new chunks enter the probationary segment and are promoted to the protected segment when they're hit again, so that
+ * streaming a track once doesn't flush the chunks of tracks that are played often.
+ * <p>
+ * The memory budget is shared with the buffers of the tracks being played, see {@link #reserve(long)}.
+ *
+ * @author Gianlu
+ */
+class ChunkCache {
+    private static final int PROTECTED_PERCENTAGE = 80;
+    private final long budget;
+    private final LinkedHashMap<Key, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, byte[]> protect = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+    private long reserved = 0;
+
+    ChunkCache(long budget) {
+        this.budget = budget;
+    }
+
+    private long capacity() {
+        return Math.max(0, budget - reserved);
+    }
+
+    @Nullable
+    synchronized byte[] get(@NotNull String fileId, int index) {
+        Key key = new Key(fileId, index);
+        byte[] chunk = protect.get(key);
+        if (chunk != null) return chunk;
+
+        chunk = probation.remove(key);
+        if (chunk == null) return null;
+
+        probationBytes -= chunk.length;
+        protect.put(key, chunk);
+        protectedBytes += chunk.length;
+
+        long protectedCapacity = capacity() * PROTECTED_PERCENTAGE / 100;
+        Iterator<Map.Entry<Key, byte[]>> iterator = protect.entrySet().iterator();
+        while (protectedBytes > protectedCapacity && iterator.hasNext()) {
+            Map.Entry<Key, byte[]> demoted = iterator.next();
+            iterator.remove();
+            protectedBytes -= demoted.getValue().length;
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationBytes += demoted.getValue().length;
+        }
+
+        trim();
+        return chunk;
+    }
+
+    /**
+     * Adds the chunk to the cache, the array must not be modified afterwards.
+     */
+    synchronized void put(@NotNull String fileId, int index, @NotNull byte[] chunk) {
+        if (chunk.length > capacity()) return;
+
+        Key key = new Key(fileId, index);
+        if (protect.containsKey(key)) return;
+
+        byte[] old = probation.put(key, chunk);
+        if (old != null) probationBytes -= old.length;
+        probationBytes += chunk.length;
+        trim();
+    }
+
+    /**
+     * Reserves memory for a buffer outside this cache, cached chunks are evicted to make room for it.
+     * The reservation may exceed the budget, in which case the cache is emptied.
+     */
+    synchronized void reserve(long bytes) {
+        reserved += bytes;
+        trim();
+    }
+
+    synchronized void release(long bytes) {
+        reserved = Math.max(0, reserved - bytes);
+    }
+
+    private void trim() {
+        long capacity = capacity();
+        evict(probation, capacity, true);
+        evict(protect, capacity, false);
+    }
+
+    private void evict(@NotNull LinkedHashMap<Key, byte[]> segment, long capacity, boolean isProbation) {
+        Iterator<byte[]> iterator = segment.values().iterator();
+        while (probationBytes + protectedBytes > capacity && iterator.hasNext()) {
+            byte[] chunk = iterator.next();
+            iterator.remove();
+            if (isProbation) probationBytes -= chunk.length;
+            else protectedBytes -= chunk.length;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ChunkCache{probation=%d, protected=%d, reserved=%d, budget=%d}", probationBytes, protectedBytes, reserved, budget);
+    }
+
+    private static final class Key {
+        private final String fileId;
+        private final int index;
+
+        Key(@NotNull String fileId, int index) {
+            this.fileId = fileId;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return index == key.index && fileId.equals(key.fileId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fileId.hashCode() + index;
+        }
+    }
+}
@@ -3,29 +3,34 @@ package xyz.gianlu.librespot.player;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import xyz.gianlu.librespot.common.Utils;
+import xyz.gianlu.librespot.common.proto.Metadata;
 import xyz.gianlu.librespot.common.proto.Spirc;
 import xyz.gianlu.librespot.core.Session;
+import xyz.gianlu.librespot.mercury.MercuryRequests;
+import xyz.gianlu.librespot.mercury.model.TrackId;
 import xyz.gianlu.librespot.spirc.FrameListener;
 import xyz.gianlu.librespot.spirc.SpotifyIrc;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.*;
 
 /**
  * @author Gianlu
  */
-public class Player implements FrameListener, TrackHandler.Listener {
+public class Player implements FrameListener, TrackHandler.Listener, Closeable {
     private static final Logger LOGGER = Logger.getLogger(Player.class);
     private final Session session;
     private final SpotifyIrc spirc;
     private final Spirc.State.Builder state;
     private final PlayerConfiguration conf;
     private final CacheManager cacheManager;
+    private final CachePrefetcher prefetcher;
     private TrackHandler trackHandler;
     private TrackHandler preloadTrackHandler;
     private long shuffleSeed = 0;
 
-    public Player(@NotNull PlayerConfiguration conf, @NotNull CacheManager.CacheConfiguration cacheConfiguration, @NotNull Session session) {
+    public Player(@NotNull PlayerConfiguration conf, @NotNull CacheManager.CacheConfiguration cacheConfiguration, @NotNull CachePrefetcher.Configuration prefetchConfiguration, @NotNull Session session) {
         this.conf = conf;
         this.session = session;
         this.spirc = session.spirc();
@@ -37,6 +42,7 @@ public class Player implements FrameListener, TrackHandler.Listener {
             throw new RuntimeException(ex);
         }
 
+        this.prefetcher = new CachePrefetcher(session, cacheManager, new StreamFeeder.VorbisOnlyAudioQuality(conf.preferredQuality()), prefetchConfiguration);
         spirc.addListener(this);
     }
 
@@ -50,6 +56,16 @@ public class Player implements FrameListener, TrackHandler.Listener {
         return exchanges;
     }
 
+    @NotNull
+    public CachePrefetcher prefetcher() {
+        return prefetcher;
+    }
+
+    @NotNull
+    public CacheStats cacheStats() {
+        return cacheManager.stats();
+    }
+
     public void playPause() {
         handlePlayPause();
     }
@@ -322,6 +338,43 @@ public class Player implements FrameListener, TrackHandler.Listener {
         }
 
         stateUpdated();
+        prefetchKeys();
+    }
+
+    /**
+     * Requests the audio keys of the tracks that will be played next, so that they're ready when their turn comes.
+     */
+    private void prefetchKeys() {
+        int count = conf.keyPrefetchCount();
+        if (count <= 0 || state.getTrackCount() == 0) return;
+
+        List<Spirc.TrackRef> refs = new ArrayList<>(count);
+        int current = state.getPlayingTrackIndex();
+        for (int i = 1; i <= count && i < state.getTrackCount(); i++) {
+            int index = current + i;
+            if (index >= state.getTrackCount()) {
+                if (state.getRepeat()) index %= state.getTrackCount();
+                else break;
+            }
+
+            refs.add(state.getTrack(index));
+        }
+
+        StreamFeeder.AudioQualityPreference audioQualityPreference = new StreamFeeder.VorbisOnlyAudioQuality(conf.preferredQuality());
+        for (Spirc.TrackRef ref : refs) {
+            session.mercury().sendAsync(MercuryRequests.getTrack(TrackId.fromTrackRef(ref))).whenComplete((resp, ex) -> {
+                if (ex != null) {
+                    LOGGER.warn("Failed prefetching audio key, gid: " + Utils.bytesToHex(ref.getGid()), ex);
+                    return;
+                }
+
+                Metadata.Track track = StreamFeeder.pickAlternativeIfNecessary(resp.proto());
+                if (track == null) return;
+
+                Metadata.AudioFile file = audioQualityPreference.getFile(track);
+                if (file != null) session.audioKey().getAudioKeyAsync(track.getGid(), file.getFileId());
+            });
+        }
     }
 
     private void handlePlay() {
@@ -406,12 +459,33 @@ public class Player implements FrameListener, TrackHandler.Listener {
         return current + 1;
     }
 
+    /**
+     * Stops the playback and closes the cache, flushing the pending writes and compacting the control table.
+     */
+    @Override
+    public void close() {
+        if (trackHandler != null) trackHandler.close();
+        if (preloadTrackHandler != null) preloadTrackHandler.close();
+        prefetcher.close();
+
+        try {
+            cacheManager.close();
+        } catch (IOException ex) {
+            LOGGER.warn("Failed closing cache!", ex);
+        }
+    }
+
     public interface PlayerConfiguration {
         @NotNull
         StreamFeeder.AudioQuality preferredQuality();
 
         boolean preloadEnabled();
 
+        /**
+         * @return For how many of the next tracks the audio key is requested in advance, {@code 0} disables it
+         */
+        int keyPrefetchCount();
+
         float normalisationPregain();
     }
 }
@@ -28,6 +28,7 @@ public class PlayerRunner implements Runnable {
     private static final Logger LOGGER = Logger.getLogger(PlayerRunner.class);
     private static final long TRACK_PRELOAD_THRESHOLD = 10; // sec
     private final SyncState joggSyncState = new SyncState();
+    private final AudioFileStreaming audioFile;
     private final InputStream audioIn;
     private final Listener listener;
     private final StreamState joggStreamState = new StreamState();
@@ -56,6 +57,7 @@ public class PlayerRunner implements Runnable {
 
     PlayerRunner(@NotNull AudioFileStreaming audioFile, @NotNull NormalizationData normalizationData,
                  @NotNull Player.PlayerConfiguration configuration, @NotNull Listener listener, int duration) throws IOException, PlayerException {
+        this.audioFile = audioFile;
         this.audioIn = audioFile.stream();
         this.duration = duration;
         this.listener = listener;
@@ -263,6 +265,7 @@ public class PlayerRunner implements Runnable {
         jorbisDspState.clear();
         jorbisInfo.clear();
         joggSyncState.clear();
+        audioFile.close();
 
         LOGGER.trace("Cleaned up player.");
     }
@@ -308,6 +311,9 @@ public class PlayerRunner implements Runnable {
 
     void stop() {
         stopped = true;
+        synchronized (pauseLock) {
+            pauseLock.notifyAll();
+        }
     }
 
     @NotNull
@@ -0,0 +1,691 @@
+package xyz.gianlu.librespot.player;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import xyz.gianlu.librespot.common.Utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stores the chunks of all the cached files inside a few large append-only segment files. Chunks are located through
+ * an in-memory extent index which is checkpointed periodically and on close. Segments that were appended after the
+ * last checkpoint are scanned on startup, every record carries its file ID and chunk index for this purpose. Trims and
+ * deletes can't be recovered from the segments, they're appended to a journal which is replayed after the scan.
+ * <p>
+ * Positions are ordered by segment and offset, so that a journal record applies only to the chunks written before it.
+ * <p>
+ * Rewritten, trimmed and deleted chunks leave dead space behind, segments with too much dead space are compacted in
+ * the background by moving their live chunks to the active segment.
+ * <p>
+ * The lock of the store only guards the in-memory index, the data is read and written with positional I/O outside of
+ * it. Appends are serialized on their own lock and segments aren't closed while a read is in progress.
+ *
+ * @author Gianlu
+ */
+class SegmentStore implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(SegmentStore.class);
+    private static final int INDEX_VERSION = 1;
+    private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int COMPACT_LIVE_PERCENTAGE = 50;
+    private static final long COMPACT_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+    private static final long CHECKPOINT_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static final byte RECORD_TRIM = 1;
+    private static final byte RECORD_DELETE = 2;
+    private final File dir;
+    private final File indexFile;
+    private final File journalFile;
+    private final Liveness liveness;
+    private final Lock handoff;
+    private final Object appendLock = new Object();
+    private final ReadWriteLock channelsLock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<String, FileExtents> extents = new HashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-compactor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private Segment active;
+    private DataOutputStream journal;
+    private boolean dirty = false;
+
+    /**
+     * @param handoff The lock held by the writer from the moment chunks are written until they're recorded in the control table
+     */
+    SegmentStore(@NotNull File dir, @NotNull Liveness liveness, @NotNull Lock handoff) throws IOException {
+        this.dir = dir;
+        this.indexFile = new File(dir, ".index");
+        this.journalFile = new File(dir, ".journal");
+        this.liveness = liveness;
+        this.handoff = handoff;
+
+        if (!dir.exists() && !dir.mkdir())
+            throw new IllegalStateException("Cannot create segments dir!");
+
+        File[] files = dir.listFiles((d, name) -> name.startsWith("seg-"));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    int id = Integer.parseInt(file.getName().substring(4));
+                    segments.put(id, new Segment(id, file));
+                } catch (NumberFormatException ex) {
+                    LOGGER.warn("Ignoring unknown segment file: " + file);
+                }
+            }
+        }
+
+        Map<Integer, Long> indexed = indexFile.exists() ? readIndex() : Collections.emptyMap();
+        for (Segment segment : segments.values()) {
+            Long from = indexed.get(segment.id);
+            scan(segment, from == null ? 0 : from);
+        }
+
+        if (journalFile.exists()) replayJournal();
+
+        if (segments.isEmpty()) active = newSegment(0);
+        else active = segments.lastEntry().getValue();
+
+        journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+        scheduler.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::compact, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The position of the data at {@code offset} inside the segment, positions of later writes are greater
+     */
+    private static long position(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentId(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static long offset(long position) {
+        return position & 0xFFFFFFFFL;
+    }
+
+    @NotNull
+    private static String readId(@NotNull DataInput in) throws IOException {
+        byte[] gid = new byte[in.readShort()];
+        in.readFully(gid);
+        return Utils.bytesToHex(gid);
+    }
+
+    private static void writeId(@NotNull DataOutput out, @NotNull String fileId) throws IOException {
+        byte[] gid = Utils.hexToBytes(fileId);
+        out.writeShort(gid.length);
+        out.write(gid);
+    }
+
+    private static void writeRecordHeader(@NotNull DataOutput out, @NotNull String fileId, int index, int length) throws IOException {
+        writeId(out, fileId);
+        out.writeInt(index);
+        out.writeInt(length);
+    }
+
+    @NotNull
+    private Segment newSegment(int id) throws IOException {
+        Segment segment = new Segment(id, new File(dir, String.format("seg-%05d", id)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Loads the saved extent index
+     *
+     * @return The length of each segment at the time the index was saved
+     */
+    @NotNull
+    private Map<Integer, Long> readIndex() {
+        Map<Integer, Long> lengths = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_VERSION) {
+                LOGGER.warn("Discarding segment index with unknown version.");
+                return lengths;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+                lengths.put(in.readInt(), in.readLong());
+
+            int files = in.readInt();
+            for (int i = 0; i < files; i++) {
+                String fileId = readId(in);
+                int fileExtents = in.readInt();
+                for (int j = 0; j < fileExtents; j++) {
+                    int index = in.readInt();
+                    int segment = in.readInt();
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    if (segments.containsKey(segment)) put(fileId, index, position(segment, offset), length);
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Failed reading segment index, rescanning segments.", ex);
+            extents.clear();
+            for (Segment segment : segments.values()) segment.liveBytes = 0;
+            lengths.clear();
+        }
+
+        return lengths;
+    }
+
+    /**
+     * Indexes the records appended to the segment after {@code from}
+     */
+    private void scan(@NotNull Segment segment, long from) throws IOException {
+        long size = segment.channel.size();
+        if (from >= size) return;
+
+        long pos = from;
+        try (FileInputStream fileIn = new FileInputStream(segment.file)) {
+            fileIn.getChannel().position(pos);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn));
+            while (pos < size) {
+                short gidLength = in.readShort();
+                if (gidLength <= 0) break;
+
+                byte[] gid = new byte[gidLength];
+                in.readFully(gid);
+                int index = in.readInt();
+                int length = in.readInt();
+                long dataOffset = pos + 2 + gidLength + 8;
+                if (length < 0 || dataOffset + length > size) break;
+
+                skipFully(in, length);
+                put(Utils.bytesToHex(gid), index, position(segment.id, dataOffset), length);
+                pos = dataOffset + length;
+            }
+        } catch (EOFException ignored) {
+        }
+
+        if (pos < size) {
+            LOGGER.warn(String.format("Segment %d has a truncated record, discarding %d bytes.", segment.id, size - pos));
+            segment.channel.truncate(pos);
+            segment.end = pos;
+        }
+
+        if (pos > from) dirty = true;
+    }
+
+    /**
+     * Applies the trims and deletes recorded since the last checkpoint, a truncated record at the end is discarded
+     */
+    private void replayJournal() throws IOException {
+        byte[] data = Files.readAllBytes(journalFile.toPath());
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+
+        int records = 0;
+        int consumed = 0;
+        try {
+            while (bytes.available() > 0) {
+                byte type = in.readByte();
+                String fileId = readId(in);
+                int keep = type == RECORD_TRIM ? in.readInt() : 0;
+                long before = in.readLong();
+                if (type != RECORD_TRIM && type != RECORD_DELETE) throw new IOException("Unknown journal record: " + type);
+
+                remove(fileId, keep, before);
+                consumed = data.length - bytes.available();
+                records++;
+            }
+        } catch (IOException ex) {
+            LOGGER.warn(String.format("Segment journal is truncated, replayed %d records.", records), ex);
+            try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(consumed);
+            }
+        }
+
+        if (records > 0) dirty = true;
+        LOGGER.trace(String.format("Replayed %d segment journal records.", records));
+    }
+
+    /**
+     * Records a trim or a delete, it applies to the chunks written before the current end of the active segment
+     */
+    private void appendRecord(byte type, @NotNull String fileId, int keep, long before) {
+        try {
+            journal.writeByte(type);
+            writeId(journal, fileId);
+            if (type == RECORD_TRIM) journal.writeInt(keep);
+            journal.writeLong(before);
+            journal.flush();
+        } catch (IOException ex) {
+            LOGGER.warn("Failed appending to segment journal!", ex);
+        }
+    }
+
+    private long head() {
+        return position(active.id, active.end);
+    }
+
+    private static void skipFully(@NotNull InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() == -1) throw new EOFException();
+                skipped = 1;
+            }
+
+            n -= skipped;
+        }
+    }
+
+    private static void writeFully(@NotNull FileChannel channel, @NotNull ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer, pos + buffer.position());
+    }
+
+    @NotNull
+    private static byte[] readAt(@NotNull Segment segment, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (segment.channel.read(buffer, offset(position) + buffer.position()) == -1)
+                throw new EOFException(String.format("Segment %d is truncated", segment.id));
+        }
+
+        return buffer.array();
+    }
+
+    private void put(@NotNull String fileId, int index, long position, int length) {
+        FileExtents file = extents.computeIfAbsent(fileId, k -> new FileExtents());
+        release(file, index);
+        file.set(index, position, length);
+        segments.get(segmentId(position)).liveBytes += length;
+    }
+
+    private void release(@NotNull FileExtents file, int index) {
+        long position = file.position(index);
+        if (position == 0) return;
+
+        Segment segment = segments.get(segmentId(position));
+        if (segment != null) segment.liveBytes -= file.length(index);
+        file.clear(index);
+    }
+
+    /**
+     * Drops the chunks of the file starting from {@code keep} which were written before {@code before}
+     */
+    private void remove(@NotNull String fileId, int keep, long before) {
+        FileExtents file = extents.get(fileId);
+        if (file == null) return;
+
+        for (int i = keep; i < file.capacity(); i++) {
+            long position = file.position(i);
+            if (position != 0 && position < before) release(file, i);
+        }
+
+        if (file.isEmpty()) extents.remove(fileId);
+    }
+
+    /**
+     * Only the lookup holds the lock of the store, the data is read afterwards. The segment can't be deleted meanwhile.
+     */
+    @NotNull
+    byte[] read(@NotNull String fileId, int index) throws IOException {
+        channelsLock.readLock().lock();
+        try {
+            Segment segment;
+            long position;
+            int length;
+            synchronized (this) {
+                FileExtents file = extents.get(fileId);
+                position = file == null ? 0 : file.position(index);
+                if (position == 0) throw new EOFException(String.format("Chunk %d of %s is not stored", index, fileId));
+
+                segment = segments.get(segmentId(position));
+                if (segment == null) throw new EOFException(String.format("Segment %d doesn't exist", segmentId(position)));
+                length = file.length(index);
+            }
+
+            return readAt(segment, position, length);
+        } finally {
+            channelsLock.readLock().unlock();
+        }
+    }
+
+    void write(@NotNull String fileId, int index, @NotNull byte[] buffer) throws IOException {
+        append(fileId, index, buffer, -1);
+    }
+
+    /**
+     * Appends the record to the active segment. Appends are serialized, but the data is written without holding the
+     * lock of the store: the space is reserved first and the chunk is indexed once it's been written.
+     *
+     * @param expected The position the chunk must still be at to be indexed, {@code -1} to index it anyway
+     */
+    private void append(@NotNull String fileId, int index, @NotNull byte[] buffer, long expected) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(32);
+        writeRecordHeader(new DataOutputStream(header), fileId, index, buffer.length);
+
+        synchronized (appendLock) {
+            Segment segment;
+            long pos;
+            synchronized (this) {
+                if (active.end >= SEGMENT_SIZE) active = newSegment(active.id + 1);
+                segment = active;
+                pos = active.end;
+            }
+
+            writeFully(segment.channel, ByteBuffer.wrap(header.toByteArray()), pos);
+            writeFully(segment.channel, ByteBuffer.wrap(buffer), pos + header.size());
+
+            synchronized (this) {
+                segment.end = pos + header.size() + buffer.length;
+
+                FileExtents file = extents.get(fileId);
+                long current = file == null ? 0 : file.position(index);
+                if (expected == -1 || current == expected)
+                    put(fileId, index, position(segment.id, pos + header.size()), buffer.length);
+
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Drops all the chunks of the file starting from {@code keep}
+     */
+    synchronized void trim(@NotNull String fileId, int keep) {
+        if (!extents.containsKey(fileId)) return;
+
+        long before = head();
+        appendRecord(RECORD_TRIM, fileId, keep, before);
+        remove(fileId, keep, before);
+        dirty = true;
+    }
+
+    synchronized void delete(@NotNull String fileId) {
+        if (!extents.containsKey(fileId)) return;
+
+        long before = head();
+        appendRecord(RECORD_DELETE, fileId, 0, before);
+        remove(fileId, 0, before);
+        dirty = true;
+    }
+
+    /**
+     * Moves the live chunks of the segments with too much dead space to the active segment and deletes them.
+     * Every chunk is checked and moved while holding the handoff lock, so that chunks written but not yet recorded
+     * in the control table aren't taken for dead.
+     */
+    private void compact() {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment == active) continue;
+                if (segment.end > 0 && segment.liveBytes * 100 / segment.end < COMPACT_LIVE_PERCENTAGE)
+                    candidates.add(segment);
+            }
+        }
+
+        for (Segment segment : candidates) {
+            List<Map.Entry<String, Integer>> live = new ArrayList<>();
+            synchronized (this) {
+                for (Map.Entry<String, FileExtents> file : extents.entrySet()) {
+                    FileExtents fileExtents = file.getValue();
+                    for (int i = 0; i < fileExtents.capacity(); i++) {
+                        long position = fileExtents.position(i);
+                        if (position != 0 && segmentId(position) == segment.id)
+                            live.add(new AbstractMap.SimpleEntry<>(file.getKey(), i));
+                    }
+                }
+            }
+
+            long moved = 0;
+            try {
+                for (Map.Entry<String, Integer> chunk : live) {
+                    handoff.lock();
+                    try {
+                        moved += move(chunk.getKey(), chunk.getValue(), segment);
+                    } finally {
+                        handoff.unlock();
+                    }
+                }
+
+                channelsLock.writeLock().lock();
+                try {
+                    synchronized (this) {
+                        segments.remove(segment.id);
+                    }
+
+                    segment.channel.close();
+                    if (!segment.file.delete()) LOGGER.warn("Failed deleting segment: " + segment.file);
+                } finally {
+                    channelsLock.writeLock().unlock();
+                }
+
+                LOGGER.trace(String.format("Compacted segment %d, moved %d bytes.", segment.id, moved));
+            } catch (IOException ex) {
+                LOGGER.warn("Failed compacting segment " + segment.id, ex);
+            }
+        }
+
+        if (!candidates.isEmpty()) {
+            try {
+                saveIndex();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed saving segment index!", ex);
+            }
+        }
+    }
+
+    /**
+     * Moves the chunk out of the segment if it's still live, or drops it. The handoff lock must be held.
+     *
+     * @return The number of bytes moved
+     */
+    private int move(@NotNull String fileId, int index, @NotNull Segment from) throws IOException {
+        boolean isLive = liveness.isLive(fileId, index);
+
+        long position;
+        int length;
+        synchronized (this) {
+            FileExtents file = extents.get(fileId);
+            position = file == null ? 0 : file.position(index);
+            if (position == 0 || segmentId(position) != from.id) return 0;
+
+            if (!isLive) {
+                release(file, index);
+                if (file.isEmpty()) extents.remove(fileId);
+                return 0;
+            }
+
+            length = file.length(index);
+        }
+
+        append(fileId, index, readAt(from, position, length), position);
+        return length;
+    }
+
+    private void checkpoint() {
+        synchronized (this) {
+            if (!dirty) return;
+        }
+
+        try {
+            saveIndex();
+        } catch (IOException ex) {
+            LOGGER.warn("Failed saving segment index!", ex);
+        }
+    }
+
+    /**
+     * Syncs the segments, without holding the lock of the store, then writes the whole extent index and starts
+     * a new journal. Appends wait meanwhile, so that the index doesn't point to data that wasn't synced.
+     */
+    private void saveIndex() throws IOException {
+        synchronized (appendLock) {
+            channelsLock.readLock().lock();
+            try {
+                List<Segment> toSync;
+                synchronized (this) {
+                    toSync = new ArrayList<>(segments.values());
+                }
+
+                for (Segment segment : toSync)
+                    segment.channel.force(false);
+
+                synchronized (this) {
+                    writeIndex();
+                }
+            } finally {
+                channelsLock.readLock().unlock();
+            }
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(segments.size());
+            for (Segment segment : segments.values()) {
+                out.writeInt(segment.id);
+                out.writeLong(segment.end);
+            }
+
+            out.writeInt(extents.size());
+            for (Map.Entry<String, FileExtents> file : extents.entrySet()) {
+                FileExtents fileExtents = file.getValue();
+                writeId(out, file.getKey());
+                out.writeInt(fileExtents.size());
+                for (int i = 0; i < fileExtents.capacity(); i++) {
+                    long position = fileExtents.position(i);
+                    if (position == 0) continue;
+
+                    out.writeInt(i);
+                    out.writeInt(segmentId(position));
+                    out.writeLong(offset(position));
+                    out.writeInt(fileExtents.length(i));
+                }
+            }
+
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        journal.close();
+        journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, false)));
+        dirty = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            LOGGER.warn("Interrupted while waiting for the compactor!", ex);
+        }
+
+        synchronized (appendLock) {
+            channelsLock.writeLock().lock();
+            try {
+                saveIndex();
+                synchronized (this) {
+                    journal.close();
+                    for (Segment segment : segments.values())
+                        segment.channel.close();
+                }
+            } finally {
+                channelsLock.writeLock().unlock();
+            }
+        }
+    }
+
+    interface Liveness {
+        /**
+         * Called with the handoff lock held, so that no chunk is written but not yet recorded in the control table.
+         *
+         * @return Whether the chunk is still referenced by the control table
+         */
+        boolean isLive(@NotNull String fileId, int index);
+    }
+
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private long liveBytes = 0;
+        /**
+         * The end of the last completely written record, guarded by the lock of the store
+         */
+        private long end;
+
+        Segment(int id, @NotNull File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.end = channel.size();
+        }
+    }
+
+    /**
+     * The extents of the stored chunks of a file, indexed by chunk. A zero position means that the chunk isn't stored,
+     * no record data starts at the beginning of a segment.
+     */
+    private static class FileExtents {
+        private long[] positions = new long[0];
+        private int[] lengths = new int[0];
+        private int size = 0;
+
+        int capacity() {
+            return positions.length;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        long position(int index) {
+            return index < positions.length ? positions[index] : 0;
+        }
+
+        int length(int index) {
+            return index < lengths.length ? lengths[index] : 0;
+        }
+
+        void set(int index, long position, int length) {
+            if (index >= positions.length) {
+                int capacity = Math.max(index + 1, positions.length * 2);
+                positions = Arrays.copyOf(positions, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+
+            if (positions[index] == 0) size++;
+            positions[index] = position;
+            lengths[index] = length;
+        }
+
+        void clear(int index) {
+            if (position(index) == 0) return;
+
+            positions[index] = 0;
+            lengths[index] = 0;
+            size--;
+        }
+    }
+}
@@ -3,7 +3,6 @@ package xyz.gianlu.librespot.player;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.common.proto.Metadata;
 import xyz.gianlu.librespot.common.proto.Spirc;
 import xyz.gianlu.librespot.core.Session;
@@ -31,7 +30,7 @@ public class StreamFeeder {
     }
 
     @Nullable
-    private static Metadata.Track pickAlternativeIfNecessary(@NotNull Metadata.Track track) {
+    static Metadata.Track pickAlternativeIfNecessary(@NotNull Metadata.Track track) {
         if (track.getFileCount() > 0) return track;
 
         for (Metadata.Track alt : track.getAlternativeList()) {
@@ -52,17 +51,22 @@ public class StreamFeeder {
 
         byte[] key = session.audioKey().getAudioKey(track, file);
         AudioFileStreaming audioStreaming = new AudioFileStreaming(session, cacheManager, file, key);
-        audioStreaming.open();
+        try {
+            audioStreaming.open();
 
-        InputStream in = audioStreaming.stream();
-        NormalizationData normalizationData = NormalizationData.read(in);
-        LOGGER.trace(String.format("Loaded normalization data, track_gain: %.2f, track_peak: %.2f, album_gain: %.2f, album_peak: %.2f",
-                normalizationData.track_gain_db, normalizationData.track_peak, normalizationData.album_gain_db, normalizationData.album_peak));
+            InputStream in = audioStreaming.stream();
+            NormalizationData normalizationData = NormalizationData.read(in);
+            LOGGER.trace(String.format("Loaded normalization data, track_gain: %.2f, track_peak: %.2f, album_gain: %.2f, album_peak: %.2f",
+                    normalizationData.track_gain_db, normalizationData.track_peak, normalizationData.album_gain_db, normalizationData.album_peak));
 
-        if (in.skip(0xa7) != 0xa7)
-            throw new IOException("Couldn't skip 0xa7 bytes!");
+            if (in.skip(0xa7) != 0xa7)
+                throw new IOException("Couldn't skip 0xa7 bytes!");
 
-        return new LoadedStream(track, audioStreaming, normalizationData);
+            return new LoadedStream(track, audioStreaming, normalizationData);
+        } catch (IOException | RuntimeException ex) {
+            audioStreaming.close();
+            throw ex;
+        }
     }
 
     @NotNull
@@ -81,7 +85,7 @@ public class StreamFeeder {
         Metadata.Track track = session.mercury().sendSync(MercuryRequests.getTrack(id)).proto();
         track = pickAlternativeIfNecessary(track);
         if (track == null) {
-            LOGGER.fatal("Couldn't find playable track: " + Utils.bytesToHex(id.getGid()));
+            LOGGER.fatal("Couldn't find playable track: " + id.toHex());
             throw new FeederException();
         }
 
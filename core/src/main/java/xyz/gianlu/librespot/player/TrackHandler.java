@@ -43,21 +43,30 @@ public class TrackHandler implements PlayerRunner.Listener, Closeable {
 
         LOGGER.info(String.format("Loading track, name: '%s', artists: '%s'", track.getName(), Utils.toString(track.getArtistList())));
 
+        if (playerRunner != null) playerRunner.stop();
+
         try {
-            if (playerRunner != null) playerRunner.stop();
             playerRunner = new PlayerRunner(stream.in, stream.normalizationData, conf, this, track.getDuration());
-            playerRunner.initController(session.spirc().deviceState());
-            new Thread(playerRunner).start();
-
-            playerRunner.seek(pos);
-
-            listener.finishedLoading(this, play);
-
-            if (play) playerRunner.play();
         } catch (PlayerRunner.PlayerException ex) {
+            playerRunner = null;
+            stream.in.close();
             LOGGER.fatal("Failed starting playback!", ex);
             listener.loadingError(this, ex);
+            return;
+        } catch (IOException | RuntimeException ex) {
+            playerRunner = null;
+            stream.in.close();
+            throw ex;
         }
+
+        playerRunner.initController(session.spirc().deviceState());
+        new Thread(playerRunner).start();
+
+        playerRunner.seek(pos);
+
+        listener.finishedLoading(this, play);
+
+        if (play) playerRunner.play();
     }
 
     private void sendCommand(@NotNull Command command, Object... args) {
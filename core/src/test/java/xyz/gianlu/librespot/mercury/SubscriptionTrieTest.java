@@ -0,0 +1,83 @@
+package xyz.gianlu.librespot.mercury;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Gianlu
+ */
+public class SubscriptionTrieTest {
+    private final SubListener root = resp -> {
+    };
+    private final SubListener user = resp -> {
+    };
+    private final SubListener playlist = resp -> {
+    };
+    private final SubListener other = resp -> {
+    };
+
+    @Test
+    public void matchesPrefixesShortestFirst() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        trie.add("hm://playlist/user/foo/playlist/bar", playlist);
+        trie.add("hm://", root);
+        trie.add("hm://playlist/user/foo", user);
+        trie.add("hm://remote/", other);
+
+        assertEquals(Arrays.asList(root, user, playlist), trie.match("hm://playlist/user/foo/playlist/bar"));
+        assertEquals(Arrays.asList(root, user), trie.match("hm://playlist/user/foobar"));
+        assertEquals(Collections.singletonList(root), trie.match("hm://playlist/user/fo"));
+        assertEquals(Collections.emptyList(), trie.match("spotify:track:foo"));
+        assertEquals(Collections.emptyList(), trie.match(""));
+    }
+
+    @Test
+    public void matchesEveryListenerOfAPrefixOnce() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        trie.add("hm://remote/", root);
+        trie.add("hm://remote/", other);
+        trie.add("hm://remote/", root);
+
+        assertEquals(Arrays.asList(root, other), trie.match("hm://remote/user/foo"));
+    }
+
+    @Test
+    public void removeReportsOtherListeners() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        trie.add("hm://remote/", root);
+        trie.add("hm://remote/", other);
+        trie.add("hm://remote/user/", user);
+
+        assertTrue(trie.remove("hm://remote/", root));
+        assertFalse(trie.remove("hm://remote/", other));
+        assertFalse(trie.remove("hm://remote/", other));
+        assertFalse(trie.remove("hm://unknown/", other));
+
+        assertEquals(Collections.singletonList(user), trie.match("hm://remote/user/foo"));
+    }
+
+    @Test
+    public void pruningKeepsLongerPrefixes() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        trie.add("hm://playlist/", root);
+        trie.add("hm://playlist/user/foo", user);
+        trie.add("hm://playlist/user/foo/playlist/bar", playlist);
+
+        assertFalse(trie.remove("hm://playlist/user/foo", user));
+        assertEquals(Arrays.asList(root, playlist), trie.match("hm://playlist/user/foo/playlist/bar"));
+
+        assertFalse(trie.remove("hm://playlist/user/foo/playlist/bar", playlist));
+        assertEquals(Collections.singletonList(root), trie.match("hm://playlist/user/foo/playlist/bar"));
+
+        trie.add("hm://playlist/user/foo/playlist/bar", playlist);
+        assertEquals(Arrays.asList(root, playlist), trie.match("hm://playlist/user/foo/playlist/bar"));
+
+        assertFalse(trie.remove("hm://playlist/", root));
+        assertEquals(Collections.singletonList(playlist), trie.match("hm://playlist/user/foo/playlist/bar"));
+        assertEquals(Collections.emptyList(), trie.match("hm://playlist/"));
+    }
+}
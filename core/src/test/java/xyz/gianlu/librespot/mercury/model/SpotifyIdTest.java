@@ -0,0 +1,129 @@
+package xyz.gianlu.librespot.mercury.model;
+
+import com.google.protobuf.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the two {@code long}s encoding against a {@link BigInteger} reference implementation.
+ *
+ * @author Gianlu
+ */
+public class SpotifyIdTest {
+    private static final String BASE62_ALPHABET = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    private static final BigInteger SIXTY_TWO = BigInteger.valueOf(62);
+    private static final int RANDOM_IDS = 5_000;
+
+    @NotNull
+    private static String referenceBase62(@NotNull byte[] gid) {
+        BigInteger value = new BigInteger(1, gid);
+        char[] chars = new char[AbsSpotifyId.BASE62_LENGTH];
+        for (int i = chars.length - 1; i >= 0; i--) {
+            BigInteger[] divided = value.divideAndRemainder(SIXTY_TWO);
+            chars[i] = BASE62_ALPHABET.charAt(divided[1].intValue());
+            value = divided[0];
+        }
+
+        assertEquals(BigInteger.ZERO, value);
+        return new String(chars);
+    }
+
+    @NotNull
+    private static String referenceHex(@NotNull byte[] gid) {
+        return String.format("%032X", new BigInteger(1, gid));
+    }
+
+    private static void assertRoundTrip(@NotNull byte[] gid) {
+        String base62 = referenceBase62(gid);
+        String hex = referenceHex(gid);
+
+        TrackId id = TrackId.fromGid(ByteString.copyFrom(gid));
+        assertEquals(base62, id.toBase62());
+        assertEquals(hex, id.toHex());
+        assertArrayEquals(gid, id.getGid());
+
+        TrackId fromBase62 = TrackId.fromBase62(base62);
+        assertEquals(id, fromBase62);
+        assertArrayEquals(gid, fromBase62.getGid());
+
+        TrackId fromHex = TrackId.fromHex(hex);
+        assertEquals(id, fromHex);
+        assertEquals(id, TrackId.fromHex(hex.toLowerCase()));
+        assertEquals(base62, fromHex.toBase62());
+
+        assertEquals(id, TrackId.fromUri(id.toSpotifyUri()));
+    }
+
+    @Test
+    public void randomGidsRoundTrip() {
+        Random random = new Random(42);
+        byte[] gid = new byte[16];
+        for (int i = 0; i < RANDOM_IDS; i++) {
+            random.nextBytes(gid);
+            assertRoundTrip(gid);
+        }
+    }
+
+    @Test
+    public void edgeGidsRoundTrip() {
+        byte[] gid = new byte[16];
+        assertRoundTrip(gid);
+
+        Arrays.fill(gid, (byte) 0xFF);
+        assertRoundTrip(gid);
+
+        for (int bit = 0; bit < 128; bit++) {
+            Arrays.fill(gid, (byte) 0);
+            gid[bit / 8] = (byte) (0x80 >>> (bit % 8));
+            assertRoundTrip(gid);
+
+            Arrays.fill(gid, (byte) 0xFF);
+            gid[bit / 8] = (byte) ~(0x80 >>> (bit % 8));
+            assertRoundTrip(gid);
+        }
+    }
+
+    @Test
+    public void typesAreNotEqual() {
+        ByteString gid = ByteString.copyFrom(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+        TrackId track = TrackId.fromGid(gid);
+        AlbumId album = AlbumId.fromGid(gid);
+        ArtistId artist = ArtistId.fromGid(gid);
+
+        assertEquals(track.toBase62(), album.toBase62());
+        assertEquals(album.toHex(), artist.toHex());
+        assertNotEquals(track, album);
+        assertNotEquals(album, artist);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void base62OverflowIsRejected() {
+        TrackId.fromBase62("ZZZZZZZZZZZZZZZZZZZZZZ");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBase62IsRejected() {
+        TrackId.fromBase62("4uLU6hMCjMI75M1A2tKU-Q");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortBase62IsRejected() {
+        TrackId.fromBase62("4uLU6hMCjMI75M1A2tKUQ");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidHexIsRejected() {
+        TrackId.fromHex("0123456789ABCDEF0123456789ABCDEG");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortGidIsRejected() {
+        TrackId.fromGid(ByteString.copyFrom(new byte[15]));
+    }
+}
@@ -0,0 +1,68 @@
+package xyz.gianlu.librespot.player;
+
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static xyz.gianlu.librespot.player.ChannelManager.CHUNK_SIZE;
+
+/**
+ * @author Gianlu
+ */
+public class AudioDecryptTest {
+    private static final BigInteger AUDIO_AES_IV = new BigInteger("72e067fbddcbcf77ebe8bc643f630d93", 16);
+
+    private static byte[] referenceDecrypt(byte[] key, int chunkIndex, byte[] in) throws Exception {
+        byte[] iv = AUDIO_AES_IV.add(BigInteger.valueOf((long) CHUNK_SIZE * chunkIndex / 16)).toByteArray();
+        byte[] fixedIv = new byte[16];
+        System.arraycopy(iv, Math.max(0, iv.length - 16), fixedIv, Math.max(0, 16 - iv.length), Math.min(16, iv.length));
+
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(fixedIv));
+        return cipher.doFinal(in);
+    }
+
+    private static void assertDecrypts(int chunkIndex, int length) throws Exception {
+        Random random = new Random(chunkIndex * 31L + length);
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        byte[] in = new byte[length];
+        random.nextBytes(in);
+
+        BitSet ranges = new BitSet();
+        byte[] out = new byte[length];
+        new AudioDecrypt(key).decryptChunk(chunkIndex, in, out, (offset, rangeLength) -> {
+            assertEquals(0, offset % AudioDecrypt.RANGE_SIZE);
+            assertTrue(rangeLength <= AudioDecrypt.RANGE_SIZE);
+            synchronized (ranges) {
+                assertFalse(ranges.get(offset, offset + rangeLength).cardinality() > 0);
+                ranges.set(offset, offset + rangeLength);
+            }
+        });
+
+        assertEquals(length, ranges.cardinality());
+        assertArrayEquals(referenceDecrypt(key, chunkIndex, in), out);
+    }
+
+    @Test
+    public void decryptsWholeChunksInRanges() throws Exception {
+        for (int chunk = 0; chunk < 4; chunk++)
+            assertDecrypts(chunk, CHUNK_SIZE);
+
+        assertDecrypts(12345, CHUNK_SIZE);
+    }
+
+    @Test
+    public void decryptsPartialChunks() throws Exception {
+        assertDecrypts(7, 1);
+        assertDecrypts(7, AudioDecrypt.RANGE_SIZE);
+        assertDecrypts(7, AudioDecrypt.RANGE_SIZE + 1);
+        assertDecrypts(7, 3 * AudioDecrypt.RANGE_SIZE - 5);
+    }
+}
@@ -0,0 +1,138 @@
+package xyz.gianlu.librespot.player;
+
+import com.google.protobuf.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+import static xyz.gianlu.librespot.player.CacheTestUtils.randomChunks;
+import static xyz.gianlu.librespot.player.CacheTestUtils.readCached;
+import static xyz.gianlu.librespot.player.ChannelManager.CHUNK_SIZE;
+
+/**
+ * Opening a second {@link CacheManager} on a directory without closing the first one simulates a crash: the table
+ * snapshot is never written and the state must be rebuilt from the journal.
+ *
+ * @author Gianlu
+ */
+public class CacheManagerTest {
+    private static final ByteString FILE_A = ByteString.copyFrom(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20});
+    private static final ByteString FILE_B = ByteString.copyFrom(new byte[]{21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35, 36, 37, 38, 39, 40});
+    private static final int SIZE = 2 * CHUNK_SIZE + 1024;
+    private static final int CHUNKS = 3;
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    private CacheManager crashed = null;
+
+    private static void store(@NotNull CacheManager.Handler handler, @NotNull byte[][] chunks) throws InterruptedException {
+        handler.writeHeaders(new byte[]{0x3}, new byte[][]{{0, 0, 0, 1}}, (short) chunks.length);
+        for (int i = 0; i < chunks.length; i++) handler.writeBlocking(chunks[i], i);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!handler.isComplete()) {
+            if (System.currentTimeMillis() > deadline) fail("Chunks weren't written in time");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Stops the threads of the crashed instance once the test is done with the directory
+     */
+    @After
+    public void closeCrashed() throws IOException {
+        if (crashed != null) crashed.close();
+    }
+
+    private void replaysJournalAfterCrash(boolean segmented) throws Exception {
+        File dir = folder.newFolder();
+        byte[][] chunksA = randomChunks(1, SIZE);
+        byte[][] chunksB = randomChunks(2, SIZE);
+
+        crashed = new CacheManager(new TestCacheConfiguration(dir, segmented));
+        try (CacheManager.Handler a = crashed.handler(FILE_A);
+             CacheManager.Handler b = crashed.handler(FILE_B)) {
+            assertNotNull(a);
+            assertNotNull(b);
+            store(a, chunksA);
+            store(b, chunksB);
+            b.remove();
+        }
+
+        CacheManager cacheManager = new CacheManager(new TestCacheConfiguration(dir, segmented));
+        try (CacheManager.Handler a = cacheManager.handler(FILE_A);
+             CacheManager.Handler b = cacheManager.handler(FILE_B)) {
+            assertNotNull(a);
+            assertNotNull(b);
+            assertTrue(a.hasHeaders());
+            assertTrue(a.isComplete());
+            for (int i = 0; i < CHUNKS; i++) {
+                assertTrue(a.has(i));
+                assertArrayEquals(chunksA[i], readCached(a, i));
+            }
+
+            assertFalse(b.hasHeaders());
+            for (int i = 0; i < CHUNKS; i++) assertFalse(b.has(i));
+        } finally {
+            cacheManager.close();
+        }
+    }
+
+    @Test
+    public void replaysJournalAfterCrash() throws Exception {
+        replaysJournalAfterCrash(false);
+    }
+
+    @Test
+    public void replaysJournalAfterCrashSegmented() throws Exception {
+        replaysJournalAfterCrash(true);
+    }
+
+    @Test
+    public void compactionWritesNewSnapshotGeneration() throws Exception {
+        File dir = folder.newFolder();
+        byte[][] chunks = randomChunks(1, SIZE);
+
+        CacheManager cacheManager = new CacheManager(new TestCacheConfiguration(dir, false));
+        try (CacheManager.Handler handler = cacheManager.handler(FILE_A)) {
+            assertNotNull(handler);
+            store(handler, chunks);
+        }
+
+        cacheManager.close();
+        File[] first = dir.listFiles((d, name) -> name.startsWith(".table"));
+        assertNotNull(first);
+        assertEquals(1, first.length);
+
+        cacheManager = new CacheManager(new TestCacheConfiguration(dir, false));
+        try (CacheManager.Handler handler = cacheManager.handler(FILE_A)) {
+            assertNotNull(handler);
+            assertTrue(handler.isComplete());
+        } finally {
+            cacheManager.close();
+        }
+
+        File[] second = dir.listFiles((d, name) -> name.startsWith(".table"));
+        assertNotNull(second);
+        assertEquals(1, second.length);
+        assertNotEquals(first[0], second[0]);
+    }
+
+    @Test
+    public void writesAfterCloseAreDropped() throws Exception {
+        CacheManager cacheManager = new CacheManager(new TestCacheConfiguration(folder.newFolder(), false));
+        CacheManager.Handler handler = cacheManager.handler(FILE_A);
+        assertNotNull(handler);
+        handler.writeHeaders(new byte[]{0x3}, new byte[][]{{0, 0, 0, 1}}, (short) CHUNKS);
+        cacheManager.close();
+
+        assertFalse(handler.writeBlocking(new byte[1024], 0));
+        assertEquals(1, cacheManager.stats().droppedWrites.sum());
+        handler.close();
+    }
+}
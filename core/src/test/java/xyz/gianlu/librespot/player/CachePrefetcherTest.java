@@ -0,0 +1,112 @@
+package xyz.gianlu.librespot.player;
+
+import com.google.protobuf.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+import static xyz.gianlu.librespot.player.CacheTestUtils.randomChunks;
+import static xyz.gianlu.librespot.player.CacheTestUtils.readCached;
+import static xyz.gianlu.librespot.player.ChannelManager.CHUNK_SIZE;
+
+/**
+ * @author Gianlu
+ */
+public class CachePrefetcherTest {
+    private static final ByteString FILE_ID = ByteString.copyFrom(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20});
+    private static final int SIZE = 2 * CHUNK_SIZE + 1024;
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Delivers a chunk the way {@link ChannelManager} does: every channel sends the headers before the data.
+     */
+    private static void deliver(@NotNull AudioFile file, @NotNull byte[] chunk, int index) throws IOException {
+        file.writeHeader((byte) 0x3, ByteBuffer.allocate(4).putInt(SIZE / 4).array(), false);
+        file.headerEnd(false);
+        file.writeChunk(chunk, index, false);
+    }
+
+    @Test
+    public void prefetchedTrackIsComplete() throws Exception {
+        File dir = folder.newFolder();
+        byte[][] chunks = randomChunks(42, SIZE);
+
+        CacheManager cacheManager = new CacheManager(new TestCacheConfiguration(dir, false));
+        try (CacheManager.Handler handler = cacheManager.handler(FILE_ID)) {
+            assertNotNull(handler);
+            assertFalse(handler.hasHeaders());
+
+            CachePrefetcher.PrefetchFile prefetch = new CachePrefetcher.PrefetchFile(handler, true);
+            for (int i = 0; i < chunks.length; i++) deliver(prefetch, chunks[i], i);
+            prefetch.close();
+        }
+
+        cacheManager.close();
+
+        cacheManager = new CacheManager(new TestCacheConfiguration(dir, false));
+        try (CacheManager.Handler handler = cacheManager.handler(FILE_ID)) {
+            assertNotNull(handler);
+            assertTrue(handler.hasHeaders());
+            assertTrue(handler.isComplete());
+
+            AudioFileFetch fetch = new AudioFileFetch(handler);
+            handler.requestHeaders(fetch);
+            fetch.waitChunk();
+            assertEquals(SIZE, fetch.getSize());
+            assertEquals(chunks.length, fetch.getChunks());
+
+            for (int i = 0; i < chunks.length; i++)
+                assertArrayEquals(chunks[i], readCached(handler, i));
+        } finally {
+            cacheManager.close();
+        }
+    }
+
+    @Test
+    public void resumedPrefetchKeepsCachedChunks() throws Exception {
+        File dir = folder.newFolder();
+        byte[][] chunks = randomChunks(42, SIZE);
+
+        CacheManager cacheManager = new CacheManager(new TestCacheConfiguration(dir, false));
+        try (CacheManager.Handler handler = cacheManager.handler(FILE_ID)) {
+            assertNotNull(handler);
+
+            CachePrefetcher.PrefetchFile prefetch = new CachePrefetcher.PrefetchFile(handler, true);
+            deliver(prefetch, chunks[0], 0);
+            prefetch.close();
+        }
+
+        cacheManager.close();
+
+        cacheManager = new CacheManager(new TestCacheConfiguration(dir, false));
+        try (CacheManager.Handler handler = cacheManager.handler(FILE_ID)) {
+            assertNotNull(handler);
+            assertTrue(handler.hasHeaders());
+            assertEquals(1, handler.firstMissingChunk(0));
+
+            CachePrefetcher.PrefetchFile prefetch = new CachePrefetcher.PrefetchFile(handler, false);
+            handler.requestHeaders(prefetch);
+            prefetch.waitChunk();
+            for (int i = 1; i < chunks.length; i++) deliver(prefetch, chunks[i], i);
+            prefetch.close();
+        }
+
+        cacheManager.close();
+
+        cacheManager = new CacheManager(new TestCacheConfiguration(dir, false));
+        try (CacheManager.Handler handler = cacheManager.handler(FILE_ID)) {
+            assertNotNull(handler);
+            assertTrue(handler.isComplete());
+            assertArrayEquals(chunks[0], readCached(handler, 0));
+        } finally {
+            cacheManager.close();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package xyz.gianlu.librespot.player;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static xyz.gianlu.librespot.player.ChannelManager.CHUNK_SIZE;
+
+/**
+ * @author Gianlu
+ */
+class CacheTestUtils {
+
+    /**
+     * @return The chunks of a file of {@code size} bytes filled with random data
+     */
+    @NotNull
+    static byte[][] randomChunks(long seed, int size) {
+        Random random = new Random(seed);
+        byte[][] chunks = new byte[(size + CHUNK_SIZE - 1) / CHUNK_SIZE][];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new byte[Math.min(CHUNK_SIZE, size - i * CHUNK_SIZE)];
+            random.nextBytes(chunks[i]);
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Requests the chunk from the cache, fails if it isn't read from there.
+     */
+    @NotNull
+    static byte[] readCached(@NotNull CacheManager.Handler handler, int index) throws Exception {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        handler.requestChunk(index, new AudioFileFetch(handler) {
+            @Override
+            public void writeChunk(byte[] chunk, int chunkIndex, boolean cached) {
+                if (cached && chunkIndex == index) future.complete(chunk);
+                else future.completeExceptionally(new AssertionError("Chunk not from cache: " + chunkIndex));
+            }
+
+            @Override
+            public void cacheFailedChunk(int index, @NotNull AudioFile file) {
+                future.completeExceptionally(new AssertionError("Failed reading chunk from cache: " + index));
+            }
+        });
+
+        return future.get(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,130 @@
+package xyz.gianlu.librespot.player;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reopening a store without closing it simulates a crash: nothing is checkpointed and the journal isn't reset.
+ *
+ * @author Gianlu
+ */
+public class SegmentStoreTest {
+    private static final String FILE_A = "0102030405060708090A0B0C0D0E0F1011121314";
+    private static final String FILE_B = "1415161718191A1B1C1D1E1F2021222324252627";
+    private final Random random = new Random(42);
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @NotNull
+    private static SegmentStore open(@NotNull File dir) throws IOException {
+        return new SegmentStore(dir, (fileId, index) -> true, new ReentrantLock());
+    }
+
+    private static void assertMissing(@NotNull SegmentStore store, @NotNull String fileId, int index) throws IOException {
+        try {
+            store.read(fileId, index);
+            fail(String.format("Chunk %d of %s should be missing", index, fileId));
+        } catch (EOFException ignored) {
+        }
+    }
+
+    @NotNull
+    private byte[] randomChunk() {
+        byte[] chunk = new byte[1024 + random.nextInt(1024)];
+        random.nextBytes(chunk);
+        return chunk;
+    }
+
+    @Test
+    public void recoversWritesWithoutIndex() throws IOException {
+        File dir = folder.newFolder();
+        byte[][] chunks = {randomChunk(), randomChunk(), randomChunk()};
+
+        SegmentStore store = open(dir);
+        for (int i = 0; i < chunks.length; i++) store.write(FILE_A, i, chunks[i]);
+
+        store = open(dir);
+        for (int i = 0; i < chunks.length; i++) assertArrayEquals(chunks[i], store.read(FILE_A, i));
+        store.close();
+    }
+
+    @Test
+    public void recoversTrimsAndDeletesAfterCheckpoint() throws IOException {
+        File dir = folder.newFolder();
+        byte[][] chunks = {randomChunk(), randomChunk(), randomChunk()};
+
+        SegmentStore store = open(dir);
+        for (int i = 0; i < chunks.length; i++) store.write(FILE_A, i, chunks[i]);
+        store.write(FILE_B, 0, randomChunk());
+        store.close();
+
+        store = open(dir);
+        store.trim(FILE_A, 1);
+        store.delete(FILE_B);
+
+        store = open(dir);
+        assertArrayEquals(chunks[0], store.read(FILE_A, 0));
+        assertMissing(store, FILE_A, 1);
+        assertMissing(store, FILE_A, 2);
+        assertMissing(store, FILE_B, 0);
+        store.close();
+
+        store = open(dir);
+        assertArrayEquals(chunks[0], store.read(FILE_A, 0));
+        assertMissing(store, FILE_A, 1);
+        assertMissing(store, FILE_B, 0);
+        store.close();
+    }
+
+    @Test
+    public void rewriteAfterDeleteSurvivesReplay() throws IOException {
+        File dir = folder.newFolder();
+        byte[] chunk = randomChunk();
+
+        SegmentStore store = open(dir);
+        store.write(FILE_A, 0, randomChunk());
+        store.write(FILE_A, 1, randomChunk());
+        store.delete(FILE_A);
+        store.write(FILE_A, 0, chunk);
+
+        store = open(dir);
+        assertArrayEquals(chunk, store.read(FILE_A, 0));
+        assertMissing(store, FILE_A, 1);
+        store.close();
+    }
+
+    @Test
+    public void discardsTruncatedJournalRecord() throws IOException {
+        File dir = folder.newFolder();
+        byte[] chunk = randomChunk();
+
+        SegmentStore store = open(dir);
+        store.write(FILE_A, 0, chunk);
+        store.write(FILE_B, 0, randomChunk());
+        store.delete(FILE_B);
+
+        try (FileOutputStream out = new FileOutputStream(new File(dir, ".journal"), true)) {
+            out.write(new byte[]{1, 0, 20, 1, 2, 3});
+        }
+
+        store = open(dir);
+        assertArrayEquals(chunk, store.read(FILE_A, 0));
+        assertMissing(store, FILE_B, 0);
+        store.trim(FILE_A, 0);
+
+        store = open(dir);
+        assertMissing(store, FILE_A, 0);
+        store.close();
+    }
+}
@@ -0,0 +1,65 @@
+package xyz.gianlu.librespot.player;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+
+/**
+ * A cache configuration for tests: no clean up, no quota and no scrubbing.
+ *
+ * @author Gianlu
+ */
+class TestCacheConfiguration implements CacheManager.CacheConfiguration {
+    private final File dir;
+    private final boolean segmented;
+
+    TestCacheConfiguration(@NotNull File dir, boolean segmented) {
+        this.dir = dir;
+        this.segmented = segmented;
+    }
+
+    @Override
+    public boolean cacheEnabled() {
+        return true;
+    }
+
+    @Override
+    public @NotNull File cacheDir() {
+        return dir;
+    }
+
+    @Override
+    public boolean doCleanUp() {
+        return false;
+    }
+
+    @Override
+    public @NotNull CacheManager.SyncPolicy cacheSyncPolicy() {
+        return CacheManager.SyncPolicy.ALWAYS;
+    }
+
+    @Override
+    public int cacheQuotaMb() {
+        return 0;
+    }
+
+    @Override
+    public int cacheScrubBandwidthKbps() {
+        return 0;
+    }
+
+    @Override
+    public int cacheMemoryMb() {
+        return 16;
+    }
+
+    @Override
+    public boolean cacheSegmentedStore() {
+        return segmented;
+    }
+
+    @Override
+    public boolean cacheShared() {
+        return false;
+    }
+}